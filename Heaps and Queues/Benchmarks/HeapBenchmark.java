@@ -0,0 +1,362 @@
+package projects.pqueue.benchmarks;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import projects.pqueue.InvalidPriorityException;
+import projects.pqueue.heaps.ArrayMinHeap;
+import projects.pqueue.heaps.EmptyHeapException;
+import projects.pqueue.heaps.LinkedMinHeap;
+import projects.pqueue.heaps.MinHeap;
+import projects.pqueue.priorityqueues.BucketPriorityQueue;
+import projects.pqueue.priorityqueues.EmptyPriorityQueueException;
+import projects.pqueue.priorityqueues.LinearPriorityQueue;
+import projects.pqueue.priorityqueues.MinHeapPriorityQueue;
+import projects.pqueue.priorityqueues.PriorityQueue;
+
+/**
+ * <p><tt>HeapBenchmark</tt> is a self-contained throughput benchmark for the {@link MinHeap}s and
+ * {@link PriorityQueue}s of the package. For every combination of structure, size, priority distribution and
+ * workload, it runs a number of warm-up iterations followed by measured iterations, and reports the mean and best
+ * time per operation, together with the bytes allocated per operation by the benchmark thread (when the JVM exposes
+ * that counter). Results are written as a JSON array, one object per combination, so that runs can be diffed and
+ * tracked for regressions.</p>
+ *
+ * <p>Workloads:</p>
+ * <ul>
+ *     <li><b>insert</b>: n insertions into an empty structure.</li>
+ *     <li><b>deleteMin</b>: n deletions from a structure of n elements.</li>
+ *     <li><b>getMin</b>: n peeks at a structure of n elements.</li>
+ *     <li><b>iterate</b>: a full iteration over a structure of n elements.</li>
+ *     <li><b>hold</b>: the classic <em>hold model</em>: n times, delete the minimum and re-insert it with its
+ *     priority increased by a value drawn from the distribution, keeping the size at n.</li>
+ * </ul>
+ *
+ * <p>Usage: <tt>HeapBenchmark [--sizes 1000,10000,...] [--warmup W] [--iterations I] [--out file.json]</tt>.
+ * Structures with linear-time insertion are skipped for sizes above 100,000. Priorities are drawn within the range
+ * every structure declares it accepts, and a combination that fails anyway is reported as a result with an
+ * <tt>error</tt> field instead of aborting the run.</p>
+ *
+ * @author Moweizi Xia
+ */
+public class HeapBenchmark {
+
+	private static final int[] DEFAULT_SIZES = {1_000, 10_000, 100_000, 1_000_000, 10_000_000};
+	private static final int LINEAR_LIMIT = 100_000;
+	private static final String[] DISTRIBUTIONS = {"random", "monotone", "duplicates"};
+	private static final String[] WORKLOADS = {"insert", "deleteMin", "getMin", "iterate", "hold"};
+
+	/**
+	 * A uniform view over heaps and priority queues of int priorities.
+	 */
+	interface Subject {
+		/**
+		 * @return The highest priority the structure accepts.
+		 */
+		default int maxPriority() {
+			return Integer.MAX_VALUE;
+		}
+
+		void insert(int priority);
+		int deleteMin();
+		int getMin();
+		int iterate();
+		void clear();
+	}
+
+	static class HeapSubject implements Subject {
+		final MinHeap<Integer> heap;
+
+		HeapSubject(MinHeap<Integer> heap) {
+			this.heap = heap;
+		}
+
+		public void insert(int priority) {
+			heap.insert(priority);
+		}
+
+		public int deleteMin() {
+			try {
+				return heap.deleteMin();
+			} catch (EmptyHeapException e) {
+				throw new RuntimeException(e);
+			}
+		}
+
+		public int getMin() {
+			try {
+				return heap.getMin();
+			} catch (EmptyHeapException e) {
+				throw new RuntimeException(e);
+			}
+		}
+
+		public int iterate() {
+			int sum = 0;
+			for (Integer val: heap) sum += val;
+			return sum;
+		}
+
+		public void clear() {
+			heap.clear();
+		}
+	}
+
+	static class QueueSubject implements Subject {
+		final PriorityQueue<Integer> queue;
+
+		QueueSubject(PriorityQueue<Integer> queue) {
+			this.queue = queue;
+		}
+
+		public void insert(int priority) {
+			try {
+				queue.enqueue(priority, priority);
+			} catch (InvalidPriorityException e) {
+				throw new RuntimeException(e);
+			}
+		}
+
+		public int deleteMin() {
+			try {
+				return queue.dequeue();
+			} catch (EmptyPriorityQueueException e) {
+				throw new RuntimeException(e);
+			}
+		}
+
+		public int getMin() {
+			try {
+				return queue.getFirst();
+			} catch (EmptyPriorityQueueException e) {
+				throw new RuntimeException(e);
+			}
+		}
+
+		public int iterate() {
+			int sum = 0;
+			for (Iterator<Integer> itr = queue.iterator(); itr.hasNext(); ) sum += itr.next();
+			return sum;
+		}
+
+		public void clear() {
+			queue.clear();
+		}
+	}
+
+	static Subject create(String structure) {
+		switch (structure) {
+			case "ArrayMinHeap": return new HeapSubject(new ArrayMinHeap<Integer>());
+			case "LinkedMinHeap": return new HeapSubject(new LinkedMinHeap<Integer>());
+			case "LinearPriorityQueue": return new QueueSubject(new LinearPriorityQueue<Integer>());
+			case "MinHeapPriorityQueue": return new QueueSubject(new MinHeapPriorityQueue<Integer>());
+			case "BucketPriorityQueue": return new QueueSubject(new BucketPriorityQueue<Integer>());
+			default: throw new RuntimeException("Unknown structure " + structure);
+		}
+	}
+
+	static volatile long blackhole;
+
+	static final String[] STRUCTURES = {"ArrayMinHeap", "LinkedMinHeap", "LinearPriorityQueue",
+			"MinHeapPriorityQueue", "BucketPriorityQueue"};
+
+	/**
+	 * Generates n priorities from the given distribution, none of them above max. The same seed is used for every
+	 * structure.
+	 */
+	static int[] priorities(String distribution, int n, long seed, int max) {
+		Random random = new Random(seed);
+		int[] keys = new int[n];
+		for (int i = 0; i < n; i++) {
+			switch (distribution) {
+				case "random": keys[i] = random.nextInt(1 << 20); break;
+				case "monotone": keys[i] = i; break;
+				case "duplicates": keys[i] = random.nextInt(16); break;
+				default: throw new RuntimeException("Unknown distribution " + distribution);
+			}
+			keys[i] = Math.min(keys[i], max);
+		}
+		return keys;
+	}
+
+	/**
+	 * Runs a single iteration of a workload.
+	 * @return A value derived from the results, to keep the JIT from eliminating the work.
+	 */
+	static long run(Subject subject, String workload, int[] keys, int[] increments) {
+		long sink = 0;
+		int n = keys.length;
+		int max = subject.maxPriority();
+		switch (workload) {
+			case "insert":
+				for (int i = 0; i < n; i++) subject.insert(keys[i]);
+				break;
+			case "deleteMin":
+				for (int i = 0; i < n; i++) sink += subject.deleteMin();
+				break;
+			case "getMin":
+				for (int i = 0; i < n; i++) sink += subject.getMin();
+				break;
+			case "iterate":
+				sink += subject.iterate();
+				break;
+			case "hold":
+				for (int i = 0; i < n; i++) {
+					int min = subject.deleteMin();
+					subject.insert((int) Math.min((long) min + increments[i], max));
+				}
+				break;
+			default:
+				throw new RuntimeException("Unknown workload " + workload);
+		}
+		return sink;
+	}
+
+	static void prepare(Subject subject, String workload, int[] keys) {
+		subject.clear();
+		if (!workload.equals("insert"))
+			for (int key: keys) subject.insert(key);
+	}
+
+	static class Result {
+		String structure, distribution, workload, error;
+		int size, iterations;
+		double meanNsPerOp, bestNsPerOp, bytesPerOp;
+	}
+
+	static Result measure(String structure, String distribution, String workload, int n, int warmup, int iterations) {
+		Subject subject = create(structure);
+		int[] keys = priorities(distribution, n, 42, subject.maxPriority());
+		int[] increments = priorities(distribution.equals("monotone") ? "random" : distribution, n, 43,
+				subject.maxPriority());
+		long ops = n;
+		long sink = 0;
+
+		for (int i = 0; i < warmup; i++) {
+			prepare(subject, workload, keys);
+			sink += run(subject, workload, keys, increments);
+		}
+
+		double total = 0, best = Double.MAX_VALUE, bytes = 0;
+		for (int i = 0; i < iterations; i++) {
+			prepare(subject, workload, keys);
+			long allocated = allocatedBytes();
+			long start = System.nanoTime();
+			sink += run(subject, workload, keys, increments);
+			long elapsed = System.nanoTime() - start;
+			bytes += allocatedBytes() - allocated;
+			double perOp = (double) elapsed / ops;
+			total += perOp;
+			best = Math.min(best, perOp);
+		}
+		blackhole = sink;
+
+		Result result = new Result();
+		result.structure = structure;
+		result.distribution = distribution;
+		result.workload = workload;
+		result.size = n;
+		result.iterations = iterations;
+		result.meanNsPerOp = total / iterations;
+		result.bestNsPerOp = best;
+		result.bytesPerOp = allocatedBytes() < 0 ? -1 : bytes / iterations / ops;
+		return result;
+	}
+
+	/**
+	 * @return A result recording that a combination failed with the given exception.
+	 */
+	static Result failure(String structure, String distribution, String workload, int n, RuntimeException e) {
+		Result result = new Result();
+		result.structure = structure;
+		result.distribution = distribution;
+		result.workload = workload;
+		result.size = n;
+		result.error = String.valueOf(e.getCause() != null ? e.getCause() : e);
+		return result;
+	}
+
+	/**
+	 * @return The number of bytes allocated so far by the current thread, or -1 if the JVM does not track it.
+	 */
+	static long allocatedBytes() {
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean) {
+			com.sun.management.ThreadMXBean sun = (com.sun.management.ThreadMXBean) bean;
+			if (sun.isThreadAllocatedMemorySupported() && sun.isThreadAllocatedMemoryEnabled())
+				return sun.getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		return -1;
+	}
+
+	static void writeJson(List<Result> results, Writer out) {
+		PrintWriter writer = new PrintWriter(out);
+		writer.println("[");
+		for (int i = 0; i < results.size(); i++) {
+			Result r = results.get(i);
+			writer.printf(Locale.ROOT, "  {\"structure\": \"%s\", \"distribution\": \"%s\", \"workload\": \"%s\", "
+					+ "\"size\": %d, ", r.structure, r.distribution, r.workload, r.size);
+			if (r.error != null)
+				writer.printf(Locale.ROOT, "\"error\": \"%s\"}", r.error.replace("\\", "\\\\").replace("\"", "\\\""));
+			else
+				writer.printf(Locale.ROOT, "\"iterations\": %d, \"meanNsPerOp\": %.3f, \"bestNsPerOp\": %.3f, \"bytesPerOp\": %.3f}",
+						r.iterations, r.meanNsPerOp, r.bestNsPerOp, r.bytesPerOp);
+			writer.println(i + 1 < results.size() ? "," : "");
+		}
+		writer.println("]");
+		writer.flush();
+	}
+
+	public static void main(String[] args) throws IOException {
+		int[] sizes = DEFAULT_SIZES;
+		int warmup = 3, iterations = 5;
+		String out = null;
+
+		for (int i = 0; i < args.length; i++) {
+			switch (args[i]) {
+				case "--sizes": sizes = Arrays.stream(args[++i].split(",")).mapToInt(Integer::parseInt).toArray(); break;
+				case "--warmup": warmup = Integer.parseInt(args[++i]); break;
+				case "--iterations": iterations = Integer.parseInt(args[++i]); break;
+				case "--out": out = args[++i]; break;
+				default: throw new RuntimeException("Unknown argument " + args[i]);
+			}
+		}
+
+		List<Result> results = new ArrayList<Result>();
+		for (String structure: STRUCTURES) {
+			for (int n: sizes) {
+				if (structure.equals("LinearPriorityQueue") && n > LINEAR_LIMIT) continue;
+				for (String distribution: DISTRIBUTIONS) {
+					for (String workload: WORKLOADS) {
+						try {
+							Result result = measure(structure, distribution, workload, n, warmup, iterations);
+							results.add(result);
+							System.err.printf(Locale.ROOT, "%-22s %-10s %-9s n=%-9d %10.1f ns/op %8.1f B/op%n",
+									structure, distribution, workload, n, result.meanNsPerOp, result.bytesPerOp);
+						} catch (RuntimeException e) {
+							Result result = failure(structure, distribution, workload, n, e);
+							results.add(result);
+							System.err.printf(Locale.ROOT, "%-22s %-10s %-9s n=%-9d failed: %s%n",
+									structure, distribution, workload, n, result.error);
+						}
+					}
+				}
+			}
+		}
+
+		if (out == null) {
+			writeJson(results, new PrintWriter(System.out));
+		} else {
+			try (Writer writer = new FileWriter(out)) {
+				writeJson(results, writer);
+			}
+		}
+	}
+}
@@ -1,9 +1,11 @@
 package projects.pqueue.heaps;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.ConcurrentModificationException;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
+import projects.pqueue.QueueMetrics;
 import projects.pqueue.priorityqueues.LinearPriorityQueue.Element;
 import projects.pqueue.priorityqueues.MinHeapPriorityQueue;
 import projects.pqueue.trees.EmptyTreeException;
@@ -22,6 +24,7 @@ public class ArrayMinHeap<T extends Comparable<T>> implements MinHeap<T> {
 	private ArrayList<T> heap;
 	private int size;
 	private T root;
+	private QueueMetrics metrics;
 	protected boolean modificationFlag;
 
 	/**
@@ -129,6 +132,16 @@ public class ArrayMinHeap<T extends Comparable<T>> implements MinHeap<T> {
 		return (ArrayList<Integer>) this.heap;
 		
 	}
+
+	/**
+	 * Reads the backing array in heap order, without copying or sorting it: the children of the element at index i
+	 * are at indices 2i + 1 and 2i + 2, and are never smaller than it.
+	 * @param index An index between 0 and size() - 1.
+	 * @return The element at that index of the backing array.
+	 */
+	public T get(int index) {
+		return this.heap.get(index);
+	}
 	
 	/**
 	 * Standard equals() method.
@@ -199,32 +212,90 @@ public class ArrayMinHeap<T extends Comparable<T>> implements MinHeap<T> {
 		else {
 			this.heap.add(element);
 			this.size++;
-			heapifyAdd(this.heap, element);
+			siftUp(this.size - 1);
 			this.root = heap.get(0);
 		}
+		if (metrics != null) metrics.size(this.size);
 		modificationFlag = true;
 	}
 
-	private void heapifyAdd(ArrayList<T> heap, T element) {
-		int index = size - 1;
-		int parent_index = (index - 1) / 2;
-		//System.out.println("Out here before while! Index is " + index + ". Parent index is: " + parent_index);
-		while(element.compareTo(this.heap.get(parent_index)) < 0 && index > 0) {
-			this.heap.set(index, this.heap.get(parent_index));
-			this.heap.set(parent_index, element);
-			
+	/**
+	 * Inserts every element of the provided {@link Collection}. Small batches are sifted up one by one; once the
+	 * batch is large enough relative to the heap that this would cost more than a linear pass, the whole array is
+	 * re-heapified bottom-up instead (Floyd's method), which takes O(n + m) time for a heap of n elements and a batch
+	 * of m elements.
+	 *
+	 * @param elements The elements to insert.
+	 */
+	public void insertAll(Collection<? extends T> elements) {
+		int m = elements.size();
+		if (m == 0) return;
+
+		int old = this.size;
+		this.heap.addAll(elements);
+		this.size += m;
+
+		int log = 32 - Integer.numberOfLeadingZeros(this.size);
+		if ((long) m * log > this.size) {
+			for (int i = this.size / 2 - 1; i >= 0; i--)
+				siftDown(i);
+		} else {
+			for (int i = old; i < this.size; i++)
+				siftUp(i);
+		}
+		this.root = this.heap.get(0);
+		if (metrics != null) metrics.size(this.size);
+		modificationFlag = true;
+	}
+
+	/**
+	 * Attaches a {@link QueueMetrics} recorder to the heap, or detaches it if null.
+	 * @param metrics The recorder that will receive the sift depths, comparisons and sizes of the heap.
+	 */
+	public void setMetrics(QueueMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	public QueueMetrics getMetrics() {
+		return metrics;
+	}
+
+	private void siftUp(int index) {
+		T element = this.heap.get(index);
+		int depth = 0, comparisons = 0;
+		while (index > 0) {
+			int parent_index = (index - 1) / 2;
+			T parent = this.heap.get(parent_index);
+			comparisons++;
+			if (element.compareTo(parent) >= 0) break;
+			this.heap.set(index, parent);
 			index = parent_index;
-			parent_index = (index - 1) / 2;	
+			depth++;
 		}
-		//System.out.println("Out here! Index is " + index + ". Parent index is: " + parent_index);
-		if (index == (parent_index * 2 + 2)) {
-			//System.out.println("In here!");
-			T left_child = this.heap.get(index - 1);
-			if (left_child.compareTo(this.heap.get(index)) > 0) {
-				this.heap.set(index, left_child);
-				this.heap.set(index - 1, element);
+		this.heap.set(index, element);
+		if (metrics != null) metrics.sift(depth, comparisons);
+	}
+
+	private void siftDown(int index) {
+		T element = this.heap.get(index);
+		int half = this.size / 2;
+		int depth = 0, comparisons = 0;
+		while (index < half) {
+			int child = 2 * index + 1;
+			T min = this.heap.get(child);
+			if (child + 1 < this.size) {
+				comparisons++;
+				if (this.heap.get(child + 1).compareTo(min) < 0)
+					min = this.heap.get(++child);
 			}
+			comparisons++;
+			if (element.compareTo(min) <= 0) break;
+			this.heap.set(index, min);
+			index = child;
+			depth++;
 		}
+		this.heap.set(index, element);
+		if (metrics != null) metrics.sift(depth, comparisons);
 	}
 
 	@Override
@@ -254,7 +325,7 @@ public class ArrayMinHeap<T extends Comparable<T>> implements MinHeap<T> {
 		this.heap.set(0, temp_root);
 		this.heap.remove(size - 1);
 		this.size--;
-		heapifyDelete(this.heap, temp_root);
+		siftDown(0);
 		this.root = this.heap.get(0);
 		
 		modificationFlag = true;
@@ -269,41 +340,6 @@ public class ArrayMinHeap<T extends Comparable<T>> implements MinHeap<T> {
 	}
 
 
-	private void heapifyDelete(ArrayList<T> heap, T temp_root) {
-		int index = 0;
-		int left_child_index = 1;
-		int right_child_index = 2;
-		
-		while((left_child_index < heap.size() && this.heap.get(left_child_index).compareTo(temp_root) < 0) || 
-				(right_child_index < heap.size() && this.heap.get(right_child_index).compareTo(temp_root) < 0)) {
-			T min;
-			int new_index;
-			
-			if (left_child_index < heap.size() && right_child_index >= heap.size()) {
-				min = this.heap.get(left_child_index);
-				new_index = left_child_index;
-			}
-
-			else {
-				if (this.heap.get(left_child_index).compareTo(this.heap.get(right_child_index)) <= 0) {
-					min = this.heap.get(left_child_index);
-					new_index = left_child_index;
-				}
-				else {
-					min = this.heap.get(right_child_index);
-					new_index = right_child_index;
-				}
-			}
-				//system.out.println("Swapping with " + min);
-				this.heap.set(index, min);
-				this.heap.set(new_index, temp_root);
-				
-				index = new_index;
-				left_child_index = (index * 2) + 1;
-				right_child_index = (index * 2) + 2;
-		}
-	}
-	
 	public void incSize() {
 		this.size++;
 	}
@@ -3,6 +3,7 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.ConcurrentModificationException;
 import java.util.Iterator;
+import projects.pqueue.QueueMetrics;
 /**
  * <p>A <tt>LinkedMinHeap</tt> is a tree (specifically, a <b>complete</b> binary tree) where every nodes is
  * smaller than or equal to its descendants (as defined by the <tt>compareTo() </tt>overridings of the type T).
@@ -21,6 +22,7 @@ public class LinkedMinHeap<T extends Comparable<T>> implements MinHeap<T> {
 
 	private Node root;
 	private int size;
+	private QueueMetrics metrics;
 	protected boolean modificationFlag;
 	
 	public class Node {
@@ -233,16 +235,20 @@ public class LinkedMinHeap<T extends Comparable<T>> implements MinHeap<T> {
 			insertHelper(root, direction, new_node);
 			heapifyInsert(new_node);
 		}
+		if (metrics != null) metrics.size(this.size);
 		modificationFlag = true;
 	} 
 
 	private void heapifyInsert(Node new_node) {
+		int depth = 0;
 		while (new_node.parent != null && new_node.parent.val.compareTo(new_node.val) > 0) {
 			T temp = new_node.parent.val;
 			new_node.parent.val = new_node.val;
 			new_node.val = temp;
 			new_node = new_node.parent;
+			depth++;
 		}
+		if (metrics != null) metrics.sift(depth, new_node.parent == null ? depth : depth + 1);
 	}
 
 	private void insertHelper(Node root, String direction, Node new_node) {
@@ -267,6 +273,18 @@ public class LinkedMinHeap<T extends Comparable<T>> implements MinHeap<T> {
 		}
 	}
 
+	/**
+	 * Attaches a {@link QueueMetrics} recorder to the heap, or detaches it if null.
+	 * @param metrics The recorder that will receive the sift depths, comparisons and sizes of the heap.
+	 */
+	public void setMetrics(QueueMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	public QueueMetrics getMetrics() {
+		return metrics;
+	}
+
 	@Override
 	public T getMin() throws EmptyHeapException {
 		if(isEmpty())
@@ -321,27 +339,23 @@ public class LinkedMinHeap<T extends Comparable<T>> implements MinHeap<T> {
 
 
 	private void heapifyDelete(Node root) {
-		while ((root.left != null && root.left.val.compareTo(root.val) < 0) || (root.right != null && root.right.val.compareTo(root.val) < 0)) {
-			T min;
-			if (root.right == null) {
-				min = root.left.val;
-				root.left.val = root.val;
-				root.val = min;
-				root = root.left;
-			} else {
-				if (root.right.val.compareTo(root.left.val) < 0) {
-					min = root.right.val;
-					root.right.val = root.val;
-					root.val = min;
-					root = root.right;
-				} else {
-					min = root.left.val;
-					root.left.val = root.val;
-					root.val = min;
-					root = root.left;
-				}
+		int depth = 0, comparisons = 0;
+		while (root.left != null) {
+			Node min = root.left;
+			if (root.right != null) {
+				comparisons++;
+				if (root.right.val.compareTo(root.left.val) < 0) min = root.right;
 			}
+			comparisons++;
+			if (min.val.compareTo(root.val) >= 0) break;
+
+			T temp = min.val;
+			min.val = root.val;
+			root.val = temp;
+			root = min;
+			depth++;
 		}
+		if (metrics != null) metrics.sift(depth, comparisons);
 	}
 
 	public ArrayList<T> iteratorHelper(Node root) {
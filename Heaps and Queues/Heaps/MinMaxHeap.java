@@ -0,0 +1,244 @@
+package projects.pqueue.heaps;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * <p><tt>MinMaxHeap</tt> is a double-ended {@link MinHeap}: besides the minimum, it also provides constant time access
+ * to the maximum and logarithmic time removal of it. It is the min-max heap of Atkinson et al.: a complete binary tree
+ * stored in an array, like {@link ArrayMinHeap}, whose even levels (starting from the root) are <em>min levels</em>
+ * and odd levels are <em>max levels</em>. Every element on a min level is smaller than or equal to all of its
+ * descendants, and every element on a max level is larger than or equal to all of its descendants. Consequently, the
+ * minimum is the root and the maximum is the larger of the root's children.</p>
+ *
+ * <p>This makes <tt>MinMaxHeap</tt> a good fit for bounded top-k structures: inserting a candidate and then evicting the
+ * worst element with {@link #deleteMax()} costs O(log k), instead of the O(k) scan required by a plain {@link MinHeap}.</p>
+ *
+ * @author Moweizi Xia
+ *
+ * @see MinHeap
+ * @see ArrayMinHeap
+ */
+public class MinMaxHeap<T extends Comparable<T>> implements MinHeap<T> {
+
+	private ArrayList<T> heap;
+	protected boolean modificationFlag;
+
+	/**
+	 *  Default constructor.
+	 */
+	public MinMaxHeap(){
+		this.heap = new ArrayList<T>();
+		modificationFlag = false;
+	}
+
+	/**
+	 *  Non-default constructor that reserves room for a number of elements.
+	 *  @param capacity The number of elements the heap can hold before it needs to grow its storage.
+	 */
+	public MinMaxHeap(int capacity){
+		this.heap = new ArrayList<T>(capacity);
+		modificationFlag = false;
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return heap.isEmpty();
+	}
+
+	@Override
+	public int size() {
+		return heap.size();
+	}
+
+	@Override
+	public void clear() {
+		heap.clear();
+		modificationFlag = true;
+	}
+
+	@Override
+	public void insert(T element) {
+		heap.add(element);
+		pushUp(heap.size() - 1);
+		modificationFlag = true;
+	}
+
+	@Override
+	public T getMin() throws EmptyHeapException {
+		if (isEmpty())
+			throw new EmptyHeapException("getMin: Heap is empty.");
+
+		return heap.get(0);
+	}
+
+	/**
+	 * Returns the maximum element of the heap, without removing it.
+	 * @return The maximum element of the heap.
+	 * @throws EmptyHeapException if the heap is empty.
+	 */
+	public T getMax() throws EmptyHeapException {
+		if (isEmpty())
+			throw new EmptyHeapException("getMax: Heap is empty.");
+
+		return heap.get(maxIndex());
+	}
+
+	@Override
+	public T deleteMin() throws EmptyHeapException {
+		if (isEmpty())
+			throw new EmptyHeapException("deleteMin: Heap is empty.");
+
+		return removeAt(0);
+	}
+
+	/**
+	 * Removes and returns the maximum element of the heap.
+	 * @return The maximum element of the heap.
+	 * @throws EmptyHeapException if the heap is empty.
+	 */
+	public T deleteMax() throws EmptyHeapException {
+		if (isEmpty())
+			throw new EmptyHeapException("deleteMax: Heap is empty.");
+
+		return removeAt(maxIndex());
+	}
+
+	private int maxIndex() {
+		int size = heap.size();
+		if (size == 1) return 0;
+		if (size == 2) return 1;
+		return heap.get(1).compareTo(heap.get(2)) >= 0 ? 1 : 2;
+	}
+
+	/* Replaces the element at index with the last element of the array and restores the heap order below it. */
+	private T removeAt(int index) {
+		T removed = heap.get(index);
+		T last = heap.remove(heap.size() - 1);
+		if (index < heap.size()) {
+			heap.set(index, last);
+			pushDown(index);
+		}
+		modificationFlag = true;
+		return removed;
+	}
+
+	private static boolean isMinLevel(int index) {
+		return ((31 - Integer.numberOfLeadingZeros(index + 1)) & 1) == 0;
+	}
+
+	private void swap(int i, int j) {
+		T temp = heap.get(i);
+		heap.set(i, heap.get(j));
+		heap.set(j, temp);
+	}
+
+	private void pushUp(int index) {
+		if (index == 0) return;
+
+		int parent = (index - 1) / 2;
+		int order = heap.get(index).compareTo(heap.get(parent));
+		if (isMinLevel(index)) {
+			if (order > 0) {
+				swap(index, parent);
+				pushUp(parent, false);
+			} else {
+				pushUp(index, true);
+			}
+		} else {
+			if (order < 0) {
+				swap(index, parent);
+				pushUp(parent, true);
+			} else {
+				pushUp(index, false);
+			}
+		}
+	}
+
+	/* Moves the element at index up through its grandparents, which lie on the same kind of level. */
+	private void pushUp(int index, boolean min) {
+		while (index > 2) {
+			int grandparent = ((index - 1) / 2 - 1) / 2;
+			int order = heap.get(index).compareTo(heap.get(grandparent));
+			if (min ? order >= 0 : order <= 0) break;
+			swap(index, grandparent);
+			index = grandparent;
+		}
+	}
+
+	private void pushDown(int index) {
+		boolean min = isMinLevel(index);
+		int size = heap.size();
+
+		while (2 * index + 1 < size) {
+			int m = extremeDescendant(index, min);
+			int order = heap.get(m).compareTo(heap.get(index));
+			if (min ? order >= 0 : order <= 0) return;
+
+			swap(m, index);
+			if (m <= 2 * index + 2) return;
+
+			// m is a grandchild: the element moved down may now violate the order with m's parent.
+			int parent = (m - 1) / 2;
+			int parentOrder = heap.get(m).compareTo(heap.get(parent));
+			if (min ? parentOrder > 0 : parentOrder < 0) swap(m, parent);
+			index = m;
+		}
+	}
+
+	/* The index of the smallest (or largest) element among the children and grandchildren of index. */
+	private int extremeDescendant(int index, boolean min) {
+		int size = heap.size();
+		int best = 2 * index + 1;
+		int[] candidates = {2 * index + 2, 4 * index + 3, 4 * index + 4, 4 * index + 5, 4 * index + 6};
+		for (int candidate: candidates) {
+			if (candidate >= size) break;
+			int order = heap.get(candidate).compareTo(heap.get(best));
+			if (min ? order < 0 : order > 0) best = candidate;
+		}
+		return best;
+	}
+
+	public void printHeap() {
+		for (T obj: this.heap) {
+			System.out.print(obj + " ");
+		}
+		System.out.print("\n");
+	}
+
+	/**
+	 * Returns an iterator over the elements of the heap in ascending order.
+	 */
+	@Override
+	public Iterator<T> iterator() {
+		ArrayList<T> sorted = new ArrayList<T>(this.heap);
+		Collections.sort(sorted);
+		return new MinMaxHeapIterator(sorted);
+	}
+
+	class MinMaxHeapIterator implements Iterator<T> {
+
+		int current;
+		ArrayList<T> list;
+
+		public MinMaxHeapIterator(ArrayList<T> sorted) {
+			current = 0;
+			modificationFlag = false;
+			list = sorted;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return current < list.size();
+		}
+
+		@Override
+		public T next() {
+			if (modificationFlag) throw new ConcurrentModificationException("next(): Attempted to traverse a heap after removal.");
+			if (!hasNext()) throw new NoSuchElementException("next(): No more elements in the heap.");
+			return list.get(current++);
+		}
+	}
+}
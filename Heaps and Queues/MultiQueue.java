@@ -0,0 +1,329 @@
+package projects.pqueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import projects.pqueue.heaps.ArrayMinHeap;
+import projects.pqueue.heaps.EmptyHeapException;
+import projects.pqueue.priorityqueues.EmptyPriorityQueueException;
+
+/**
+ * <p>A <tt>MultiQueue</tt> is a <b>relaxed</b> concurrent priority queue, made out of c&middot;P independent
+ * {@link ArrayMinHeap} shards, each one guarded by its own lock, where P is the number of threads expected to use
+ * it and c a small constant. Enqueueing picks a random shard; dequeueing peeks at the minima of two random shards
+ * and removes the smaller one. Locks are only ever <em>tried</em>, so a busy shard is skipped instead of waited on.</p>
+ *
+ * <p>The price is that {@link #deleteMin()} does not always return the true minimum: it returns an element whose
+ * <em>rank</em> (the number of elements in the structure with strictly smaller priority) is small in expectation,
+ * and shrinks as c does. The rank error is not free to measure, so it is <b>sampled</b>: see
+ * {@link #setRankSampling(int)} and {@link #getMetrics()}.</p>
+ *
+ * @param <T> The type held by the container.
+ *
+ * @author Moweizi Xia
+ *
+ * @see ArrayMinHeap
+ * @see projects.pqueue.priorityqueues.ConcurrentSkipListPriorityQueue
+ */
+public class MultiQueue<T> {
+
+	private static final long EMPTY = Long.MAX_VALUE;	// above every int priority, so that no element is mistaken for it
+	private static final int DEFAULT_C = 2;
+
+	private final Shard[] shards;
+	private final AtomicInteger size;
+	private volatile int sampleEvery;
+
+	private final LongAdder inserts;
+	private final LongAdder deletes;
+	private final LongAdder lockFailures;
+	private final AtomicLong sampleCount;
+	private final LongAdder rankErrorSum;
+	private final AtomicLong rankErrorMax;
+
+	public class Element implements Comparable<Element> {
+		private final T val;
+		private final int priority;
+		private final long seq;
+
+		public Element(T val, int priority, long seq) {
+			this.val = val;
+			this.priority = priority;
+			this.seq = seq;
+		}
+
+		@Override
+		public int compareTo(Element other) {
+			if (priority != other.priority) return priority < other.priority ? -1 : 1;
+			return Long.compare(seq, other.seq);
+		}
+	}
+
+	class Shard {
+		final ReentrantLock lock = new ReentrantLock();
+		final ArrayMinHeap<Element> heap = new ArrayMinHeap<Element>();
+		volatile long top = EMPTY;
+		long seq = 0;
+
+		/* Only called while holding the lock. */
+		void refreshTop() {
+			try {
+				top = heap.isEmpty() ? EMPTY : heap.getMin().priority;
+			} catch (EmptyHeapException e) {
+				top = EMPTY;
+			}
+		}
+	}
+
+	/**
+	 * Default constructor. Creates 2&middot;P shards, where P is the number of available processors.
+	 */
+	public MultiQueue() {
+		this(Runtime.getRuntime().availableProcessors(), DEFAULT_C);
+	}
+
+	/**
+	 * Non-default constructor.
+	 * @param threads The number of threads expected to operate on the queue concurrently.
+	 * @param c The number of shards per thread. Higher values reduce contention and increase the rank error.
+	 * @throws IllegalArgumentException if either parameter is smaller than 1.
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	public MultiQueue(int threads, int c) {
+		if (threads < 1 || c < 1) throw new IllegalArgumentException("constructor: threads and c must be positive");
+
+		shards = (Shard[]) new MultiQueue.Shard[threads * c];
+		for (int i = 0; i < shards.length; i++)
+			shards[i] = new Shard();
+		size = new AtomicInteger();
+		sampleEvery = 0;
+
+		inserts = new LongAdder();
+		deletes = new LongAdder();
+		lockFailures = new LongAdder();
+		sampleCount = new AtomicLong();
+		rankErrorSum = new LongAdder();
+		rankErrorMax = new AtomicLong();
+	}
+
+	/**
+	 * Inserts an element into a random, currently unlocked shard.
+	 * @param element The element to insert.
+	 * @param priority The priority of the element. Lower is better.
+	 * @throws InvalidPriorityException if the priority is negative.
+	 */
+	public void enqueue(T element, int priority) throws InvalidPriorityException {
+		if (priority < 0) throw new InvalidPriorityException("enqueue: priority is negative");
+
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		while (true) {
+			Shard shard = shards[random.nextInt(shards.length)];
+			if (shard.lock.tryLock()) {
+				try {
+					shard.heap.insert(new Element(element, priority, shard.seq++));
+					if (priority < shard.top) shard.top = priority;
+				} finally {
+					shard.lock.unlock();
+				}
+				break;
+			}
+			lockFailures.increment();
+		}
+		size.incrementAndGet();
+		inserts.increment();
+	}
+
+	/**
+	 * Removes an element of (approximately) minimum priority: the smaller of the minima of two random shards.
+	 * @return An element whose priority is close to the minimum.
+	 * @throws EmptyPriorityQueueException if every shard was found empty.
+	 */
+	public T deleteMin() throws EmptyPriorityQueueException {
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		int misses = 0;
+
+		while (true) {
+			Shard a = shards[random.nextInt(shards.length)];
+			Shard b = shards[random.nextInt(shards.length)];
+			Shard shard = a.top <= b.top ? a : b;
+
+			if (shard.top == EMPTY) {
+				if (++misses >= shards.length) {
+					if (allEmpty()) throw new EmptyPriorityQueueException("deleteMin: Queue is empty");
+					misses = 0;
+				}
+				continue;
+			}
+			if (!shard.lock.tryLock()) {
+				lockFailures.increment();
+				continue;
+			}
+
+			Element removed = null;
+			try {
+				if (!shard.heap.isEmpty()) {
+					removed = shard.heap.deleteMin();
+					shard.refreshTop();
+				}
+			} catch (EmptyHeapException e) {
+				removed = null;
+			} finally {
+				shard.lock.unlock();
+			}
+
+			if (removed != null) {
+				size.decrementAndGet();
+				deletes.increment();
+				int every = sampleEvery;
+				if (every > 0 && random.nextInt(every) == 0) sampleRank(removed.priority);
+				return removed.val;
+			}
+		}
+	}
+
+	private boolean allEmpty() {
+		for (Shard shard: shards)
+			if (shard.top != EMPTY) return false;
+		return true;
+	}
+
+	/**
+	 * Counts the elements, over all shards, whose priority is strictly smaller than the provided one. Shards are
+	 * visited one at a time, so the count is itself approximate under concurrent modification.
+	 */
+	private void sampleRank(int priority) {
+		long rank = 0;
+		for (Shard shard: shards) {
+			if (shard.top >= priority) continue;
+			shard.lock.lock();
+			try {
+				rank += countBelow(shard.heap, 0, priority);
+			} finally {
+				shard.lock.unlock();
+			}
+		}
+		sampleCount.incrementAndGet();
+		rankErrorSum.add(rank);
+		long max = rankErrorMax.get();
+		while (rank > max && !rankErrorMax.compareAndSet(max, rank))
+			max = rankErrorMax.get();
+	}
+
+	/**
+	 * Counts the elements of priority strictly smaller than the provided one in the subtree of the backing array of
+	 * heap rooted at index. Children are never smaller than their parent, so the walk stops at the first element of
+	 * every path that is not smaller, and only costs O(rank) instead of a sorted copy of the whole shard.
+	 */
+	private int countBelow(ArrayMinHeap<Element> heap, int index, int priority) {
+		if (index >= heap.size() || heap.get(index).priority >= priority) return 0;
+		return 1 + countBelow(heap, 2 * index + 1, priority) + countBelow(heap, 2 * index + 2, priority);
+	}
+
+	/**
+	 * Enables rank error sampling. Sampling a delete costs a walk over the elements of smaller priority, under the
+	 * lock of each shard that holds some, so it should be kept rare in production.
+	 * @param every Sample, on average, one out of every deletes; 0 disables sampling.
+	 * @throws IllegalArgumentException if every is negative.
+	 */
+	public void setRankSampling(int every) {
+		if (every < 0) throw new IllegalArgumentException("setRankSampling: rate is negative");
+		sampleEvery = every;
+	}
+
+	/**
+	 * @return The number of elements in the queue. Only a moment-in-time estimate when other threads are active.
+	 */
+	public int size() {
+		return Math.max(size.get(), 0);
+	}
+
+	public boolean isEmpty() {
+		return allEmpty();
+	}
+
+	/**
+	 * @return The number of shards of the queue.
+	 */
+	public int shards() {
+		return shards.length;
+	}
+
+	/**
+	 * @return A snapshot of the throughput and quality counters gathered so far.
+	 */
+	public Metrics getMetrics() {
+		return new Metrics(inserts.sum(), deletes.sum(), lockFailures.sum(),
+				sampleCount.get(), rankErrorSum.sum(), rankErrorMax.get());
+	}
+
+	/**
+	 * Zeroes every counter reported by {@link #getMetrics()}.
+	 */
+	public void resetMetrics() {
+		inserts.reset();
+		deletes.reset();
+		lockFailures.reset();
+		sampleCount.set(0);
+		rankErrorSum.reset();
+		rankErrorMax.set(0);
+	}
+
+	/**
+	 * An immutable snapshot of the counters of a {@link MultiQueue}.
+	 */
+	public static class Metrics {
+		private final long inserts;
+		private final long deletes;
+		private final long lockFailures;
+		private final long rankSamples;
+		private final long rankErrorSum;
+		private final long rankErrorMax;
+
+		Metrics(long inserts, long deletes, long lockFailures, long rankSamples, long rankErrorSum, long rankErrorMax) {
+			this.inserts = inserts;
+			this.deletes = deletes;
+			this.lockFailures = lockFailures;
+			this.rankSamples = rankSamples;
+			this.rankErrorSum = rankErrorSum;
+			this.rankErrorMax = rankErrorMax;
+		}
+
+		public long getInserts() {
+			return inserts;
+		}
+
+		public long getDeletes() {
+			return deletes;
+		}
+
+		/**
+		 * @return How many times a shard was skipped because its lock was held by another thread.
+		 */
+		public long getLockFailures() {
+			return lockFailures;
+		}
+
+		public long getRankSamples() {
+			return rankSamples;
+		}
+
+		/**
+		 * @return The average rank of the sampled deletes, or 0 if nothing was sampled. An exact queue scores 0.
+		 */
+		public double getMeanRankError() {
+			return rankSamples == 0 ? 0 : (double) rankErrorSum / rankSamples;
+		}
+
+		public long getMaxRankError() {
+			return rankErrorMax;
+		}
+
+		@Override
+		public String toString() {
+			return "inserts=" + inserts + ", deletes=" + deletes + ", lockFailures=" + lockFailures
+					+ ", rankSamples=" + rankSamples + ", meanRankError=" + getMeanRankError()
+					+ ", maxRankError=" + rankErrorMax;
+		}
+	}
+}
@@ -0,0 +1,65 @@
+package projects.pqueue.priorityqueues;
+import projects.pqueue.InvalidPriorityException;
+import java.util.Collection;
+
+/**
+ * <p>A <tt>BatchPriorityQueue</tt> is a {@link PriorityQueue} that can also enqueue and dequeue elements in
+ * batches. The default implementations simply loop over the single-element operations; implementations are expected
+ * to override them whenever their internal structure allows for a batch to be processed faster than one element at a
+ * time (e.g. by merging a sorted batch into a sorted list, or by heapifying bottom-up).</p>
+ *
+ * @param <T> The type held by the container.
+ *
+ * @author Moweizi Xia
+ *
+ * @see PriorityQueue
+ */
+public interface BatchPriorityQueue<T> extends PriorityQueue<T> {
+
+	/**
+	 * Enqueues every element of items with the priority found at the same index of priorities. Either all elements
+	 * are enqueued, or, if some priority is invalid, none of them are.
+	 * @param items The elements to enqueue.
+	 * @param priorities The priorities of the elements, in the same order.
+	 * @throws InvalidPriorityException if any of the priorities is negative.
+	 * @throws IllegalArgumentException if the two arrays have different lengths.
+	 */
+	default void enqueueAll(T[] items, int[] priorities) throws InvalidPriorityException {
+		checkBatch(items, priorities);
+		for (int i = 0; i < items.length; i++)
+			enqueue(items[i], priorities[i]);
+	}
+
+	/**
+	 * Dequeues up to max elements, in priority order, appending them to the provided {@link Collection}.
+	 * @param results The {@link Collection} that will receive the dequeued elements.
+	 * @param max The maximum number of elements to dequeue.
+	 * @return The number of elements actually dequeued, which is smaller than max only if the queue ran out.
+	 */
+	default int drainTo(Collection<? super T> results, int max) {
+		int drained = 0;
+		try {
+			while (drained < max && !isEmpty()) {
+				results.add(dequeue());
+				drained++;
+			}
+		} catch (EmptyPriorityQueueException e) {
+			// Only possible if the queue was emptied concurrently; report what we got.
+		}
+		return drained;
+	}
+
+	/**
+	 * Validates a batch before any of it is enqueued.
+	 * @param items The elements of the batch.
+	 * @param priorities The priorities of the batch.
+	 * @throws InvalidPriorityException if any of the priorities is negative.
+	 * @throws IllegalArgumentException if the two arrays have different lengths.
+	 */
+	static void checkBatch(Object[] items, int[] priorities) throws InvalidPriorityException {
+		if (items.length != priorities.length)
+			throw new IllegalArgumentException("enqueueAll: " + items.length + " items but " + priorities.length + " priorities");
+		for (int priority: priorities)
+			if (priority < 0) throw new InvalidPriorityException("enqueueAll: priority is negative");
+	}
+}
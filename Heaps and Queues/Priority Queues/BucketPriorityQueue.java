@@ -0,0 +1,331 @@
+package projects.pqueue.priorityqueues;
+import projects.pqueue.InvalidPriorityException;
+import projects.pqueue.InvalidCapacityException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * <p><tt>BucketPriorityQueue</tt> is a {@link PriorityQueue} implemented as a <em>radix heap</em> whose lowest level
+ * is a window of buckets, one per priority level, where every bucket is a FIFO chain of the elements that share that
+ * priority. The window covers the W priorities from <tt>base</tt> to <tt>base + W - 1</tt>, where W is a power of two
+ * and <tt>base</tt> is a multiple of W at or below the smallest priority in the queue, so the low bits of a priority
+ * are used as the index of its bucket, and no comparisons between elements are ever made.</p>
+ *
+ * <p>Priorities above the window go to one of 32 radix buckets, chosen by the highest bit in which the priority
+ * differs from <tt>base</tt>. Once the window runs empty, the lowest non-empty radix bucket is scanned for its
+ * minimum, the window is moved to that minimum, and the elements of that bucket are redistributed into the window or
+ * into lower radix buckets. An element therefore only ever moves down, at most once per bit of its priority.</p>
+ *
+ * <p>Enqueueing is O(1): the element is appended to the tail of its bucket. Dequeueing scans forward from a cursor that
+ * always sits at or below the smallest non-empty bucket of the window, so it is amortized O(1) whenever priorities
+ * are bounded by the window (at most W steps per dequeue) or are monotone within a span of W, and amortized
+ * O(log C) for monotone priorities that span a range C wider than the window, such as timestamps or sequence
+ * numbers. Enqueueing a priority lower than the cursor but inside the window simply moves the cursor back; only
+ * enqueueing a priority below <tt>base</tt> into a non-empty queue, which monotone workloads never do, redistributes
+ * the whole queue.</p>
+ *
+ * <p>The chains are kept in parallel primitive arrays with a free list, so steady-state enqueues and dequeues allocate
+ * nothing, and the bucket arrays take memory for the W priorities of the window only, whatever the range of the
+ * priorities. Iteration visits the window in priority order, and the radix buckets after it in no particular
+ * order.</p>
+ *
+ * @param <T> The type held by the container.
+ *
+ * @author Moweizi Xia
+ *
+ * @see LinearPriorityQueue
+ * @see MinHeapPriorityQueue
+ */
+public class BucketPriorityQueue<T> implements BatchPriorityQueue<T> {
+
+	private static final int DEFAULT_LEVELS = 256;
+	private static final int MAX_LEVELS = 1 << 30;	// the largest power of two an array can hold
+	private static final int RADIX_BUCKETS = 32;
+	private static final int DEFAULT_SLOTS = 16;
+	private static final int NIL = -1;
+
+	private int[] heads;		// first slot of every bucket of the window, indexed by priority - base
+	private int[] tails;		// last slot of every bucket of the window, indexed by priority - base
+	private int[] radixHeads;	// first slot of every radix bucket, indexed by the bit length of priority ^ base
+	private int[] radixTails;	// last slot of every radix bucket, indexed by the bit length of priority ^ base
+	private Object[] vals;		// element stored in every slot
+	private int[] prios;		// priority of the element stored in every slot
+	private int[] next;		// next slot in the same bucket, or in the free list
+	private int free;
+	private int mask;
+	private int base;
+	private int cursor;
+	private int size;
+	protected boolean modificationFlag;
+
+	/**
+	 * Default constructor. Keeps a window of 256 priority levels; higher priorities are still accepted, and go to
+	 * the radix buckets above the window.
+	 */
+	public BucketPriorityQueue(){
+		init(DEFAULT_LEVELS);
+	}
+
+	/**
+	 * Non-default constructor that keeps a window of levels priority levels, rounded up to a power of two. Higher
+	 * priorities are still accepted, and go to the radix buckets above the window.
+	 * @param levels The number of priority levels expected by the caller.
+	 * @throws InvalidCapacityException if the number of levels provided is negative or larger than 2<sup>30</sup>.
+	 */
+	public BucketPriorityQueue(int levels) throws InvalidCapacityException{
+		if (levels < 0) throw new InvalidCapacityException("constructor: levels is negative");
+		if (levels > MAX_LEVELS) throw new InvalidCapacityException("constructor: levels is too large");
+		init(levels <= 1 ? 1 : Integer.highestOneBit(levels - 1) << 1);
+	}
+
+	private void init(int levels) {
+		heads = new int[levels];
+		tails = new int[levels];
+		radixHeads = new int[RADIX_BUCKETS];
+		radixTails = new int[RADIX_BUCKETS];
+		mask = levels - 1;
+		resetBuckets();
+		vals = new Object[DEFAULT_SLOTS];
+		prios = new int[DEFAULT_SLOTS];
+		next = new int[DEFAULT_SLOTS];
+		linkFree(0);
+		size = 0;
+		modificationFlag = false;
+	}
+
+	private void resetBuckets() {
+		Arrays.fill(heads, NIL);
+		Arrays.fill(tails, NIL);
+		Arrays.fill(radixHeads, NIL);
+		Arrays.fill(radixTails, NIL);
+		base = 0;
+		cursor = heads.length;
+	}
+
+	private void linkFree(int from) {
+		for (int i = from; i < next.length - 1; i++)
+			next[i] = i + 1;
+		next[next.length - 1] = NIL;
+		free = from;
+	}
+
+	private void growSlots() {
+		int old = vals.length;
+		vals = Arrays.copyOf(vals, old * 2);
+		prios = Arrays.copyOf(prios, old * 2);
+		next = Arrays.copyOf(next, old * 2);
+		linkFree(old);
+	}
+
+	/**
+	 * Appends slot to the bucket of its priority, which is at least base: the window if the priority is within it,
+	 * or else the radix bucket of the highest bit in which it differs from base.
+	 */
+	private void place(int slot) {
+		int priority = prios[slot];
+		next[slot] = NIL;
+		if (priority - base <= mask) {
+			int index = priority & mask;
+			if (heads[index] == NIL) heads[index] = slot;
+			else next[tails[index]] = slot;
+			tails[index] = slot;
+			if (index < cursor) cursor = index;
+		} else {
+			int index = Integer.SIZE - Integer.numberOfLeadingZeros(priority ^ base);
+			if (radixHeads[index] == NIL) radixHeads[index] = slot;
+			else next[radixTails[index]] = slot;
+			radixTails[index] = slot;
+		}
+	}
+
+	/**
+	 * Moves the window down to hold priority, which is below base, by redistributing every element. Chains are
+	 * replayed in order, so elements of equal priority, which always share a chain, keep their FIFO order.
+	 */
+	private void rebuild(int priority) {
+		int[] chains = new int[heads.length + RADIX_BUCKETS];
+		System.arraycopy(heads, 0, chains, 0, heads.length);
+		System.arraycopy(radixHeads, 0, chains, heads.length, RADIX_BUCKETS);
+		resetBuckets();
+		base = priority & ~mask;
+
+		for (int slot: chains) {
+			while (slot != NIL) {
+				int following = next[slot];
+				place(slot);
+				slot = following;
+			}
+		}
+	}
+
+	/**
+	 * Moves the window up to the minimum of the lowest non-empty radix bucket, and redistributes that bucket. Only
+	 * called when the window is empty and the queue is not. Every element of that bucket agrees with the new base on
+	 * all bits above the one that put it there, so it lands in the window or in a lower radix bucket, while the
+	 * elements of higher radix buckets stay where they are.
+	 */
+	private void rebase() {
+		int index = 0;
+		while (radixHeads[index] == NIL) index++;
+		int slot = radixHeads[index];
+		radixHeads[index] = NIL;
+		radixTails[index] = NIL;
+
+		int min = Integer.MAX_VALUE;
+		for (int s = slot; s != NIL; s = next[s])
+			min = Math.min(min, prios[s]);
+		base = min & ~mask;
+
+		while (slot != NIL) {
+			int following = next[slot];
+			place(slot);
+			slot = following;
+		}
+	}
+
+	@Override
+	public void enqueue(T element, int priority) throws InvalidPriorityException{
+		if (priority < 0) throw new InvalidPriorityException("enqueue: priority is negative");
+
+		if (size == 0) base = priority & ~mask;
+		else if (priority < base) rebuild(priority);
+		if (free == NIL) growSlots();
+
+		int slot = free;
+		free = next[slot];
+		vals[slot] = element;
+		prios[slot] = priority;
+		place(slot);
+
+		size++;
+		modificationFlag = true;
+	}
+
+	/**
+	 * Moves the cursor up to the first non-empty bucket of the window, moving the window up first if it is empty.
+	 * Only called on a non-empty queue.
+	 */
+	private void advance() {
+		while (true) {
+			while (cursor <= mask && heads[cursor] == NIL) cursor++;
+			if (cursor <= mask) return;
+			rebase();
+		}
+	}
+
+	/**
+	 * Unlinks the head of the first non-empty bucket. Only called on a non-empty queue.
+	 */
+	@SuppressWarnings("unchecked")
+	private T pop() {
+		advance();
+		int slot = heads[cursor];
+		T removed = (T) vals[slot];
+
+		heads[cursor] = next[slot];
+		if (heads[cursor] == NIL) tails[cursor] = NIL;
+		vals[slot] = null;
+		next[slot] = free;
+		free = slot;
+
+		size--;
+		if (size == 0) cursor = heads.length;
+		return removed;
+	}
+
+	@Override
+	public T dequeue() throws EmptyPriorityQueueException {
+		if (isEmpty()) throw new EmptyPriorityQueueException("dequeue: Queue is empty");
+
+		T removed = pop();
+		modificationFlag = true;
+		return removed;
+	}
+
+	@Override
+	public int drainTo(Collection<? super T> results, int max) {
+		int drained = 0;
+		while (drained < max && size > 0) {
+			results.add(pop());
+			drained++;
+		}
+		if (drained > 0) modificationFlag = true;
+		return drained;
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public T getFirst() throws EmptyPriorityQueueException {
+		if (isEmpty()) throw new EmptyPriorityQueueException("getFirst: Queue is empty");
+
+		advance();
+		return (T) vals[heads[cursor]];
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	@Override
+	public void clear() {
+		resetBuckets();
+		Arrays.fill(vals, null);
+		linkFree(0);
+		size = 0;
+		modificationFlag = true;
+	}
+
+	@Override
+	public Iterator<T> iterator() {
+		return new BucketPriorityQueueIterator();
+	}
+
+	class BucketPriorityQueueIterator implements Iterator<T> {
+
+		int level;	// buckets of the window first, then the radix buckets
+		int slot;
+
+		public BucketPriorityQueueIterator() {
+			level = cursor;
+			slot = NIL;
+			modificationFlag = false;
+			seek();
+		}
+
+		private void seek() {
+			while (slot == NIL && level < heads.length + RADIX_BUCKETS) {
+				slot = level < heads.length ? heads[level] : radixHeads[level - heads.length];
+				if (slot == NIL) level++;
+			}
+		}
+
+		@Override
+		public boolean hasNext() {
+			return slot != NIL;
+		}
+
+		@SuppressWarnings("unchecked")
+		@Override
+		public T next() {
+			if (modificationFlag) throw new ConcurrentModificationException("next(): Attempted to traverse a queue after modification.");
+			if (slot == NIL) throw new NoSuchElementException("next(): No more elements in the queue.");
+
+			T val = (T) vals[slot];
+			slot = next[slot];
+			if (slot == NIL) {
+				level++;
+				seek();
+			}
+			return val;
+		}
+	}
+}
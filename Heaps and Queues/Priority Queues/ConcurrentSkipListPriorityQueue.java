@@ -0,0 +1,242 @@
+package projects.pqueue.priorityqueues;
+import projects.pqueue.InvalidPriorityException;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * <p><tt>ConcurrentSkipListPriorityQueue</tt> is a thread-safe {@link PriorityQueue} implemented over a lock-free
+ * skiplist ({@link ConcurrentSkipListSet}). Every element is tagged with its priority and a global sequence number,
+ * so that elements of equal priority are dequeued in the order they were inserted and no two tags ever collide.</p>
+ *
+ * <p>{@link #enqueue(Object, int)}, {@link #dequeue()} and {@link #getFirst()} never block: insertion is a lock-free
+ * skiplist insert, and deleting the minimum is a lock-free removal of the first node, so producers scale across
+ * threads instead of funnelling through a single lock. The only lock in the class is used to park consumers
+ * that call {@link #take()} or {@link #poll(long, TimeUnit)} on an empty queue, and producers only touch it when
+ * somebody is actually waiting.</p>
+ *
+ * <p>Unlike the other queues of the package, this one does <b>not</b> throw a
+ * {@link java.util.ConcurrentModificationException} during iteration: its {@link Iterator} is <em>weakly
+ * consistent</em>, returning elements in priority order as they were at some point at or since its creation.
+ * {@link #size()} is similarly a moment-in-time estimate when other threads are active.</p>
+ *
+ * @param <T> The type held by the container.
+ *
+ * @author Moweizi Xia
+ *
+ * @see MinHeapPriorityQueue
+ * @see BucketPriorityQueue
+ */
+public class ConcurrentSkipListPriorityQueue<T> implements BatchPriorityQueue<T> {
+
+	private final ConcurrentSkipListSet<Element> queue;
+	private final AtomicLong sequence;
+	private final AtomicInteger size;
+	private final AtomicInteger waiters;
+	private final ReentrantLock lock;
+	private final Condition notEmpty;
+
+	public class Element implements Comparable<Element> {
+		private final T val;
+		private final int priority;
+		private final long seq;
+
+		public Element(T val, int priority, long seq) {
+			this.val = val;
+			this.priority = priority;
+			this.seq = seq;
+		}
+
+		@Override
+		public int compareTo(Element other) {
+			if (priority != other.priority) return priority < other.priority ? -1 : 1;
+			return Long.compare(seq, other.seq);
+		}
+	}
+
+	/**
+	 * Default constructor.
+	 */
+	public ConcurrentSkipListPriorityQueue(){
+		queue = new ConcurrentSkipListSet<Element>();
+		sequence = new AtomicLong();
+		size = new AtomicInteger();
+		waiters = new AtomicInteger();
+		lock = new ReentrantLock();
+		notEmpty = lock.newCondition();
+	}
+
+	@Override
+	public void enqueue(T element, int priority) throws InvalidPriorityException{
+		if (priority < 0) throw new InvalidPriorityException("enqueue: priority is negative");
+
+		queue.add(new Element(element, priority, sequence.getAndIncrement()));
+		size.incrementAndGet();
+		if (waiters.get() > 0) signalWaiters();
+	}
+
+	/**
+	 * Inserts the whole batch before waking up any waiting consumer, so they are signalled once per batch
+	 * rather than once per element.
+	 */
+	@Override
+	public void enqueueAll(T[] items, int[] priorities) throws InvalidPriorityException {
+		BatchPriorityQueue.checkBatch(items, priorities);
+
+		long seq = sequence.getAndAdd(items.length);
+		for (int i = 0; i < items.length; i++)
+			queue.add(new Element(items[i], priorities[i], seq + i));
+		size.addAndGet(items.length);
+		if (items.length > 0 && waiters.get() > 0) signalWaiters();
+	}
+
+	@Override
+	public int drainTo(Collection<? super T> results, int max) {
+		int drained = 0;
+		Element removed;
+		while (drained < max && (removed = pollElement()) != null) {
+			results.add(removed.val);
+			drained++;
+		}
+		return drained;
+	}
+
+	private void signalWaiters() {
+		lock.lock();
+		try {
+			notEmpty.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Removes the minimum element if there is one, never blocking.
+	 * @return The minimum element, or null if the queue was empty at the time of the call.
+	 */
+	private Element pollElement() {
+		Element removed = queue.pollFirst();
+		if (removed != null) size.decrementAndGet();
+		return removed;
+	}
+
+	@Override
+	public T dequeue() throws EmptyPriorityQueueException {
+		Element removed = pollElement();
+		if (removed == null) throw new EmptyPriorityQueueException("dequeue: Queue is empty");
+		return removed.val;
+	}
+
+	/**
+	 * Removes the minimum element of the queue, waiting for one to be enqueued if the queue is empty.
+	 * @return The minimum priority element.
+	 * @throws InterruptedException if the calling thread is interrupted while waiting.
+	 */
+	public T take() throws InterruptedException {
+		Element removed = pollElement();
+		if (removed != null) return removed.val;
+
+		waiters.incrementAndGet();
+		try {
+			lock.lockInterruptibly();
+			try {
+				while ((removed = pollElement()) == null)
+					notEmpty.await();
+			} finally {
+				lock.unlock();
+			}
+		} finally {
+			waiters.decrementAndGet();
+		}
+		return removed.val;
+	}
+
+	/**
+	 * Removes the minimum element of the queue, waiting up to the given time for one to be enqueued if
+	 * the queue is empty.
+	 * @param timeout How long to wait before giving up, in units of unit.
+	 * @param unit The {@link TimeUnit} of the timeout.
+	 * @return The minimum priority element, or null if the timeout elapsed before one became available.
+	 * @throws InterruptedException if the calling thread is interrupted while waiting.
+	 */
+	public T poll(long timeout, TimeUnit unit) throws InterruptedException {
+		Element removed = pollElement();
+		if (removed != null) return removed.val;
+
+		long nanos = unit.toNanos(timeout);
+		waiters.incrementAndGet();
+		try {
+			lock.lockInterruptibly();
+			try {
+				while ((removed = pollElement()) == null) {
+					if (nanos <= 0L) return null;
+					nanos = notEmpty.awaitNanos(nanos);
+				}
+			} finally {
+				lock.unlock();
+			}
+		} finally {
+			waiters.decrementAndGet();
+		}
+		return removed.val;
+	}
+
+	@Override
+	public T getFirst() throws EmptyPriorityQueueException {
+		try {
+			return queue.first().val;
+		} catch (NoSuchElementException e) {
+			throw new EmptyPriorityQueueException("getFirst: Queue is empty");
+		}
+	}
+
+	@Override
+	public int size() {
+		return Math.max(size.get(), 0);
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return queue.isEmpty();
+	}
+
+	/**
+	 * Removes every element of the queue. Elements concurrently enqueued by other threads may or may not survive.
+	 */
+	@Override
+	public void clear() {
+		Element removed = pollElement();
+		while (removed != null)
+			removed = pollElement();
+	}
+
+	@Override
+	public Iterator<T> iterator() {
+		return new ConcurrentSkipListPriorityQueueIterator();
+	}
+
+	class ConcurrentSkipListPriorityQueueIterator implements Iterator<T> {
+
+		Iterator<Element> itr;
+
+		public ConcurrentSkipListPriorityQueueIterator() {
+			itr = queue.iterator();
+		}
+
+		@Override
+		public boolean hasNext() {
+			return itr.hasNext();
+		}
+
+		@Override
+		public T next() {
+			return itr.next().val;
+		}
+	}
+}
@@ -0,0 +1,535 @@
+package projects.pqueue.priorityqueues;
+import projects.pqueue.InvalidPriorityException;
+import projects.pqueue.InvalidCapacityException;
+import projects.pqueue.heaps.ArrayMinHeap;
+import projects.pqueue.heaps.EmptyHeapException;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * <p><tt>ExternalPriorityQueue</tt> is a {@link PriorityQueue} whose size is bounded by disk rather than by heap.
+ * Incoming elements are kept in an in-memory {@link ArrayMinHeap} insertion buffer; whenever the buffer fills up,
+ * it is drained in sorted order into a <em>run</em>, a file written through a {@link FileChannel}. Dequeueing performs
+ * a lazy k-way merge between the buffer and the heads of all the runs, which are themselves kept in a small
+ * {@link ArrayMinHeap} keyed by their current head element. Every run is read through its own block buffer, so the
+ * dequeue path touches the disk once per block rather than once per element. Runs are merged level by level: a
+ * spilled run is on level 0, and as soon as a level holds fan-in runs, they are merged into a single run one level
+ * up. Every element is thus rewritten only about log<sub>fanIn</sub>(n / bufferCapacity) times, while the run heap
+ * holds at most fanIn - 1 runs per level.</p>
+ *
+ * <p>Elements are written to disk through a user-supplied {@link Codec}. The queue owns the files it creates and
+ * deletes them as they are exhausted, on {@link #clear()} and on {@link #close()}. I/O failures are reported as
+ * {@link UncheckedIOException}s.</p>
+ *
+ * @param <T> The type held by the container.
+ *
+ * @author Moweizi Xia
+ *
+ * @see MinHeapPriorityQueue
+ * @see ArrayMinHeap
+ */
+public class ExternalPriorityQueue<T> implements BatchPriorityQueue<T>, Closeable {
+
+	private static final int DEFAULT_BUFFER_CAPACITY = 1 << 16;
+	private static final int DEFAULT_FAN_IN = 64;
+	private static final int BLOCK_SIZE = 1 << 16;
+	private static final int HEADER = Integer.BYTES + Long.BYTES + Integer.BYTES;
+
+	/**
+	 * <p>A <tt>Codec</tt> converts elements to and from the bytes stored in the runs.</p>
+	 * @param <T> The type of the elements.
+	 */
+	public interface Codec<T> {
+		byte[] encode(T element);
+		T decode(byte[] bytes);
+	}
+
+	private Codec<T> codec;
+	private Path directory;
+	private boolean ownsDirectory;
+	private int bufferCapacity;
+	private int fanIn;
+	private ArrayMinHeap<Element> buffer;
+	private ArrayMinHeap<Cursor> runs;
+	private long sequence;
+	private long size;
+	private List<ExternalPriorityQueueIterator> iterators;
+	protected boolean modificationFlag;
+
+	public class Element implements Comparable<Element> {
+		private T val;
+		private int priority;
+		private long seq;
+
+		public Element(T val, int priority, long seq) {
+			this.val = val;
+			this.priority = priority;
+			this.seq = seq;
+		}
+
+		@Override
+		public int compareTo(Element other) {
+			if (priority != other.priority) return priority < other.priority ? -1 : 1;
+			return Long.compare(seq, other.seq);
+		}
+	}
+
+	/**
+	 * A sorted source of elements with its current head; either a run on disk or a sorted view of the buffer.
+	 */
+	abstract class Cursor implements Comparable<Cursor> {
+		Element head;
+
+		abstract void advance() throws IOException;
+
+		void close() throws IOException {
+		}
+
+		@Override
+		public int compareTo(Cursor other) {
+			return head.compareTo(other.head);
+		}
+	}
+
+	/**
+	 * A run on disk, read sequentially through a block buffer starting from a given offset.
+	 */
+	class Run extends Cursor {
+		final Path file;
+		final FileChannel channel;
+		final int level;
+		ByteBuffer block;
+		long position;		// file offset of the first byte not yet loaded into block
+		long headOffset;	// file offset of the record of head
+
+		Run(Path file, long offset, int level) throws IOException {
+			this.file = file;
+			this.channel = FileChannel.open(file, StandardOpenOption.READ);
+			this.level = level;
+			this.block = ByteBuffer.allocate(BLOCK_SIZE);
+			this.block.limit(0);
+			this.position = offset;
+			advance();
+		}
+
+		@Override
+		void advance() throws IOException {
+			headOffset = position - block.remaining();
+			if (!ensure(HEADER)) {
+				head = null;
+				return;
+			}
+			int priority = block.getInt();
+			long seq = block.getLong();
+			int length = block.getInt();
+			if (!ensure(length)) throw new IOException("advance: run " + file + " is truncated");
+			byte[] bytes = new byte[length];
+			block.get(bytes);
+			head = new Element(codec.decode(bytes), priority, seq);
+		}
+
+		/**
+		 * Makes sure that at least needed bytes are available in the block, growing it for oversized records.
+		 * @return false iff the end of the file was reached first.
+		 */
+		private boolean ensure(int needed) throws IOException {
+			if (block.remaining() >= needed) return true;
+			if (block.capacity() < needed) {
+				ByteBuffer bigger = ByteBuffer.allocate(needed);
+				bigger.put(block);
+				block = bigger;
+			} else {
+				block.compact();
+			}
+			while (block.position() < needed) {
+				int read = channel.read(block, position);
+				if (read < 0) break;
+				position += read;
+			}
+			block.flip();
+			return block.remaining() >= needed;
+		}
+
+		@Override
+		void close() throws IOException {
+			channel.close();
+		}
+	}
+
+	/**
+	 * A sorted snapshot of the insertion buffer, used by iterators.
+	 */
+	class BufferCursor extends Cursor {
+		final Iterator<Element> itr;
+
+		BufferCursor() {
+			itr = buffer.iterator();
+			advance();
+		}
+
+		@Override
+		void advance() {
+			head = itr.hasNext() ? itr.next() : null;
+		}
+	}
+
+	/**
+	 * Creates a queue with the default buffer capacity, spilling into a fresh temporary directory.
+	 * @param codec The {@link Codec} used to write elements to disk.
+	 */
+	public ExternalPriorityQueue(Codec<T> codec){
+		init(codec, DEFAULT_BUFFER_CAPACITY, DEFAULT_FAN_IN, null);
+	}
+
+	/**
+	 * Non-default constructor.
+	 * @param codec The {@link Codec} used to write elements to disk.
+	 * @param bufferCapacity The number of elements held in memory before the buffer is spilled into a run.
+	 * @param fanIn The number of runs of a level that are merged into one run of the next level.
+	 * @param directory The directory to create run files into, or null to use a fresh temporary directory.
+	 * @throws InvalidCapacityException if bufferCapacity is smaller than 1 or fanIn is smaller than 2.
+	 */
+	public ExternalPriorityQueue(Codec<T> codec, int bufferCapacity, int fanIn, Path directory) throws InvalidCapacityException{
+		if (bufferCapacity < 1) throw new InvalidCapacityException("constructor: buffer capacity is smaller than 1");
+		if (fanIn < 2) throw new InvalidCapacityException("constructor: fan-in is smaller than 2");
+		init(codec, bufferCapacity, fanIn, directory);
+	}
+
+	private void init(Codec<T> codec, int bufferCapacity, int fanIn, Path directory) {
+		this.codec = codec;
+		this.bufferCapacity = bufferCapacity;
+		this.fanIn = fanIn;
+		this.ownsDirectory = directory == null;
+		try {
+			this.directory = ownsDirectory ? Files.createTempDirectory("pqueue") : directory;
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		this.buffer = new ArrayMinHeap<Element>();
+		this.runs = new ArrayMinHeap<Cursor>();
+		this.iterators = new ArrayList<ExternalPriorityQueueIterator>();
+		this.sequence = 0;
+		this.size = 0;
+		modificationFlag = false;
+	}
+
+	@Override
+	public void enqueue(T element, int priority) throws InvalidPriorityException{
+		if (priority < 0) throw new InvalidPriorityException("enqueue: priority is negative");
+
+		buffer.insert(new Element(element, priority, sequence++));
+		size++;
+		if (buffer.size() >= bufferCapacity) spill();
+		modificationFlag = true;
+	}
+
+	@Override
+	public T dequeue() throws EmptyPriorityQueueException {
+		if (isEmpty()) throw new EmptyPriorityQueueException("dequeue: Queue is empty");
+
+		T removed = null;
+		try {
+			if (bufferFirst()) {
+				removed = buffer.deleteMin().val;
+			} else {
+				Cursor run = runs.deleteMin();
+				removed = run.head.val;
+				run.advance();
+				if (run.head != null) runs.insert(run);
+				else discard((Run) run);
+			}
+		} catch (EmptyHeapException e) {
+			throw new IllegalStateException("dequeue: size and contents are out of sync", e);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		size--;
+		modificationFlag = true;
+		return removed;
+	}
+
+	@Override
+	public T getFirst() throws EmptyPriorityQueueException {
+		if (isEmpty()) throw new EmptyPriorityQueueException("getFirst: Queue is empty");
+
+		try {
+			return bufferFirst() ? buffer.getMin().val : runs.getMin().head.val;
+		} catch (EmptyHeapException e) {
+			throw new EmptyPriorityQueueException("getFirst: Queue is empty");
+		}
+	}
+
+	/**
+	 * @return true iff the minimum element is in the buffer rather than at the head of a run.
+	 */
+	private boolean bufferFirst() throws EmptyHeapException {
+		if (runs.isEmpty()) return true;
+		if (buffer.isEmpty()) return false;
+		return buffer.getMin().compareTo(runs.getMin().head) < 0;
+	}
+
+	/**
+	 * Writes the buffer, in sorted order, into a new run. The buffer is only cleared once the run is complete and
+	 * registered, so that a failed write loses no element.
+	 */
+	private void spill() {
+		try {
+			Path file = Files.createTempFile(directory, "run-", ".bin");
+			Run run;
+			try {
+				try (FileChannel out = FileChannel.open(file, StandardOpenOption.WRITE)) {
+					ByteBuffer block = ByteBuffer.allocate(BLOCK_SIZE);
+					for (Element element: buffer)
+						block = write(out, block, element);
+					flush(out, block);
+				}
+				run = new Run(file, 0, 0);
+			} catch (IOException | RuntimeException e) {
+				deleteAfterFailure(file, e);
+				throw e;
+			}
+			buffer.clear();
+			runs.insert(run);
+			for (int level = 0; mergeRuns(level); level++);
+		} catch (EmptyHeapException e) {
+			throw new IllegalStateException("spill: emptied a heap that was not empty", e);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Merges the runs of a level into a single run of the next level, if the level holds fanIn of them. The merge
+	 * reads the runs through readers of its own, and the runs are only replaced by the merged run, and their files
+	 * deleted, once the merged run is complete, so that a failed merge loses no element.
+	 * @return true iff the runs were merged.
+	 */
+	private boolean mergeRuns(int level) throws IOException, EmptyHeapException {
+		List<Run> sources = new ArrayList<Run>();
+		for (Cursor run: runs)
+			if (((Run) run).level == level) sources.add((Run) run);
+		if (sources.size() < fanIn) return false;
+
+		Path file = Files.createTempFile(directory, "run-", ".bin");
+		List<Run> readers = new ArrayList<Run>();
+		Run run;
+		try {
+			ArrayMinHeap<Cursor> merged = new ArrayMinHeap<Cursor>();
+			for (Run source: sources) {
+				Run reader = new Run(source.file, source.headOffset, level);
+				readers.add(reader);
+				merged.insert(reader);
+			}
+			try (FileChannel out = FileChannel.open(file, StandardOpenOption.WRITE)) {
+				ByteBuffer block = ByteBuffer.allocate(BLOCK_SIZE);
+				while (!merged.isEmpty()) {
+					Cursor reader = merged.deleteMin();
+					block = write(out, block, reader.head);
+					reader.advance();
+					if (reader.head != null) merged.insert(reader);
+				}
+				flush(out, block);
+			}
+			run = new Run(file, 0, level + 1);
+		} catch (IOException | EmptyHeapException | RuntimeException e) {
+			deleteAfterFailure(file, e);
+			throw e;
+		} finally {
+			for (Run reader: readers)
+				reader.close();
+		}
+
+		ArrayMinHeap<Cursor> kept = new ArrayMinHeap<Cursor>();
+		while (!runs.isEmpty()) {
+			Cursor other = runs.deleteMin();
+			if (((Run) other).level != level) kept.insert(other);
+		}
+		kept.insert(run);
+		runs = kept;
+		for (Run source: sources)
+			discard(source);
+		return true;
+	}
+
+	/**
+	 * Deletes the partial file of a failed write, recording any failure to do so on the original failure.
+	 */
+	private static void deleteAfterFailure(Path file, Exception failure) {
+		try {
+			Files.deleteIfExists(file);
+		} catch (IOException e) {
+			failure.addSuppressed(e);
+		}
+	}
+
+	private ByteBuffer write(FileChannel out, ByteBuffer block, Element element) throws IOException {
+		byte[] bytes = codec.encode(element.val);
+		int length = HEADER + bytes.length;
+		if (block.remaining() < length) {
+			flush(out, block);
+			if (block.capacity() < length) block = ByteBuffer.allocate(length);
+		}
+		block.putInt(element.priority);
+		block.putLong(element.seq);
+		block.putInt(bytes.length);
+		block.put(bytes);
+		return block;
+	}
+
+	private void flush(FileChannel out, ByteBuffer block) throws IOException {
+		block.flip();
+		while (block.hasRemaining())
+			out.write(block);
+		block.clear();
+	}
+
+	private void discard(Run run) throws IOException {
+		run.close();
+		Files.deleteIfExists(run.file);
+	}
+
+	@Override
+	public int size() {
+		return (int) Math.min(size, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * @return The exact number of elements in the queue, which may exceed {@link Integer#MAX_VALUE}.
+	 */
+	public long longSize() {
+		return size;
+	}
+
+	/**
+	 * @return The number of runs currently on disk.
+	 */
+	public int runs() {
+		return runs.size();
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	@Override
+	public void clear() {
+		closeIterators();
+		discardRuns();
+		buffer.clear();
+		size = 0;
+		modificationFlag = true;
+	}
+
+	/**
+	 * Deletes every run file and, if the queue created it, the spill directory. The queue must not be used afterwards.
+	 */
+	@Override
+	public void close() throws IOException {
+		clear();
+		if (ownsDirectory) Files.deleteIfExists(directory);
+	}
+
+	private void discardRuns() {
+		try {
+			while (!runs.isEmpty())
+				discard((Run) runs.deleteMin());
+		} catch (EmptyHeapException e) {
+			throw new IllegalStateException("discardRuns: emptied a heap that was not empty", e);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private void closeIterators() {
+		for (ExternalPriorityQueueIterator itr: new ArrayList<ExternalPriorityQueueIterator>(iterators))
+			itr.close();
+	}
+
+	/**
+	 * Returns an iterator over the elements in priority order. The iterator merges its own readers over the runs, which
+	 * hold open files: they are closed once the iterator has been exhausted, by
+	 * {@link ExternalPriorityQueueIterator#close()}, or at the latest on {@link #clear()} or {@link #close()} of the
+	 * queue. An iterator that is abandoned early should therefore be closed, e.g. in a try-with-resources statement.
+	 */
+	@Override
+	public ExternalPriorityQueueIterator iterator() {
+		return new ExternalPriorityQueueIterator();
+	}
+
+	public class ExternalPriorityQueueIterator implements Iterator<T>, Closeable {
+
+		ArrayMinHeap<Cursor> sources;
+
+		public ExternalPriorityQueueIterator() {
+			sources = new ArrayMinHeap<Cursor>();
+			iterators.add(this);
+			try {
+				BufferCursor cursor = new BufferCursor();
+				if (cursor.head != null) sources.insert(cursor);
+				for (Cursor run: runs) {
+					Run reader = new Run(((Run) run).file, ((Run) run).headOffset, 0);
+					if (reader.head != null) sources.insert(reader);
+					else reader.close();
+				}
+			} catch (IOException e) {
+				close();
+				throw new UncheckedIOException(e);
+			}
+			if (sources.isEmpty()) close();
+			modificationFlag = false;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return !sources.isEmpty();
+		}
+
+		@Override
+		public T next() {
+			if (modificationFlag) throw new ConcurrentModificationException("next(): Attempted to traverse a queue after modification.");
+			if (sources.isEmpty()) throw new NoSuchElementException("next(): No more elements in the queue.");
+
+			try {
+				Cursor source = sources.deleteMin();
+				T val = source.head.val;
+				source.advance();
+				if (source.head != null) sources.insert(source);
+				else source.close();
+				if (sources.isEmpty()) close();
+				return val;
+			} catch (EmptyHeapException e) {
+				throw new NoSuchElementException("next(): No more elements in the queue.");
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+
+		/**
+		 * Closes the readers the iterator still holds; the iterator has no more elements afterwards.
+		 */
+		@Override
+		public void close() {
+			iterators.remove(this);
+			try {
+				while (!sources.isEmpty())
+					sources.deleteMin().close();
+			} catch (EmptyHeapException e) {
+				throw new IllegalStateException("close: emptied a heap that was not empty", e);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+	}
+}
@@ -0,0 +1,154 @@
+package projects.pqueue.priorityqueues;
+import projects.pqueue.InvalidPriorityException;
+import projects.pqueue.QueueMetrics;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * <p><tt>InstrumentedPriorityQueue</tt> is a {@link PriorityQueue} decorator that records the size high-water mark and
+ * the time-in-queue of every element into a {@link QueueMetrics}, for implementations that do not have their own hooks
+ * (e.g. {@link BucketPriorityQueue}). Every element is enqueued into the decorated queue as a {@link Stamped} wrapper
+ * that carries its enqueue timestamp:</p>
+ *
+ * <pre>
+ * QueueMetrics metrics = new QueueMetrics();
+ * PriorityQueue&lt;String&gt; queue = new InstrumentedPriorityQueue&lt;String&gt;(
+ *         new BucketPriorityQueue&lt;InstrumentedPriorityQueue.Stamped&lt;String&gt;&gt;(), metrics);
+ * </pre>
+ *
+ * <p>{@link LinearPriorityQueue} and {@link MinHeapPriorityQueue} should be instrumented through their own
+ * <tt>setMetrics</tt> methods instead, which also report comparisons and sift depths and do not allocate a wrapper
+ * per element.</p>
+ *
+ * <p>Batches are forwarded to the decorated queue when it is a {@link BatchPriorityQueue}, and otherwise processed one
+ * element at a time. Like {@link QueueMetrics}, the decorator is not thread-safe, so it is not suited to concurrent
+ * queues such as {@link ConcurrentSkipListPriorityQueue}.</p>
+ *
+ * @param <T> The type held by the container.
+ *
+ * @author Moweizi Xia
+ *
+ * @see QueueMetrics
+ */
+public class InstrumentedPriorityQueue<T> implements BatchPriorityQueue<T> {
+
+	private final PriorityQueue<Stamped<T>> queue;
+	private final QueueMetrics metrics;
+
+	/**
+	 * An element of the decorated queue, together with the time it was enqueued at.
+	 * @param <T> The type of the element.
+	 */
+	public static class Stamped<T> {
+		private final T val;
+		private final long enqueuedAt;
+
+		private Stamped(T val, long enqueuedAt) {
+			this.val = val;
+			this.enqueuedAt = enqueuedAt;
+		}
+	}
+
+	/**
+	 * Creates a decorator over the provided, preferably empty, queue.
+	 * @param queue The {@link PriorityQueue} to instrument.
+	 * @param metrics The {@link QueueMetrics} that will receive the statistics of the queue.
+	 */
+	public InstrumentedPriorityQueue(PriorityQueue<Stamped<T>> queue, QueueMetrics metrics){
+		this.queue = queue;
+		this.metrics = metrics;
+	}
+
+	public QueueMetrics getMetrics() {
+		return metrics;
+	}
+
+	@Override
+	public void enqueue(T element, int priority) throws InvalidPriorityException {
+		queue.enqueue(new Stamped<T>(element, metrics.enqueued()), priority);
+		metrics.size(queue.size());
+	}
+
+	@Override
+	public T dequeue() throws EmptyPriorityQueueException {
+		Stamped<T> removed = queue.dequeue();
+		metrics.dequeued(removed.enqueuedAt);
+		return removed.val;
+	}
+
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	@Override
+	public void enqueueAll(T[] items, int[] priorities) throws InvalidPriorityException {
+		if (!(queue instanceof BatchPriorityQueue)) {
+			BatchPriorityQueue.super.enqueueAll(items, priorities);
+			return;
+		}
+
+		BatchPriorityQueue.checkBatch(items, priorities);
+		long enqueuedAt = metrics.enqueued();
+		Stamped<T>[] stamped = new Stamped[items.length];
+		for (int i = 0; i < items.length; i++)
+			stamped[i] = new Stamped<T>(items[i], enqueuedAt);
+		((BatchPriorityQueue<Stamped<T>>) queue).enqueueAll(stamped, priorities);
+		metrics.size(queue.size());
+	}
+
+	@Override
+	public int drainTo(Collection<? super T> results, int max) {
+		if (!(queue instanceof BatchPriorityQueue)) return BatchPriorityQueue.super.drainTo(results, max);
+
+		List<Stamped<T>> drained = new ArrayList<Stamped<T>>();
+		int count = ((BatchPriorityQueue<Stamped<T>>) queue).drainTo(drained, max);
+		for (Stamped<T> removed: drained) {
+			metrics.dequeued(removed.enqueuedAt);
+			results.add(removed.val);
+		}
+		return count;
+	}
+
+	@Override
+	public T getFirst() throws EmptyPriorityQueueException {
+		return queue.getFirst().val;
+	}
+
+	@Override
+	public int size() {
+		return queue.size();
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return queue.isEmpty();
+	}
+
+	@Override
+	public void clear() {
+		queue.clear();
+	}
+
+	@Override
+	public Iterator<T> iterator() {
+		return new InstrumentedPriorityQueueIterator();
+	}
+
+	class InstrumentedPriorityQueueIterator implements Iterator<T> {
+
+		Iterator<Stamped<T>> itr;
+
+		public InstrumentedPriorityQueueIterator() {
+			itr = queue.iterator();
+		}
+
+		@Override
+		public boolean hasNext() {
+			return itr.hasNext();
+		}
+
+		@Override
+		public T next() {
+			return itr.next().val;
+		}
+	}
+}
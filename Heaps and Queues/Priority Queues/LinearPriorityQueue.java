@@ -1,8 +1,10 @@
 package projects.pqueue.priorityqueues; 
 import projects.pqueue.InvalidPriorityException;
 import projects.pqueue.InvalidCapacityException;
+import projects.pqueue.QueueMetrics;
 import projects.pqueue.fifoqueues.FIFOQueue;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.ConcurrentModificationException;
 import java.util.Iterator;
 
@@ -18,15 +20,17 @@ import java.util.Iterator;
  * @see MinHeapPriorityQueue
  *
  */
-public class LinearPriorityQueue<T> implements PriorityQueue<T> { 
+public class LinearPriorityQueue<T> implements BatchPriorityQueue<T> { 
 
 	private ArrayList<Element> queue;
 	private int size;
+	private QueueMetrics metrics;
 	protected boolean modificationFlag;
 	
 	public class Element {
 		private T val;
 		private int priority;
+		private long enqueuedAt;
 		
 		public Element(T val, int priority) {
 			this.val = val;
@@ -78,8 +82,66 @@ public class LinearPriorityQueue<T> implements PriorityQueue<T> {
 			}
 			//i++;
 			queue.add(i, new_element);
+			if (metrics != null) metrics.compared(Math.min(i + 1, queue.size() - 1));
 		}
+		if (metrics != null) {
+			new_element.enqueuedAt = metrics.enqueued();
+			metrics.size(size);
+		}
+		modificationFlag = true;
+	}
+
+	/**
+	 * Sorts the batch by priority and merges it with the queue in a single pass, instead of scanning the queue from
+	 * its head once per element. Elements of equal priority keep their insertion order: those already in the queue
+	 * come first, and those of the batch follow in array order.
+	 */
+	@Override
+	public void enqueueAll(T[] items, int[] priorities) throws InvalidPriorityException {
+		BatchPriorityQueue.checkBatch(items, priorities);
+		if (items.length == 0) return;
+
+		ArrayList<Element> batch = new ArrayList<Element>(items.length);
+		long now = metrics == null ? 0 : metrics.enqueued();
+		for (int i = 0; i < items.length; i++) {
+			Element element = new Element(items[i], priorities[i]);
+			element.enqueuedAt = now;
+			batch.add(element);
+		}
+		batch.sort((a, b) -> Integer.compare(a.priority, b.priority)); // Stable, so ties keep array order.
+
+		ArrayList<Element> merged = new ArrayList<Element>(queue.size() + batch.size());
+		int i = 0, j = 0;
+		while (i < queue.size() && j < batch.size()) {
+			if (queue.get(i).priority <= batch.get(j).priority) merged.add(queue.get(i++));
+			else merged.add(batch.get(j++));
+		}
+		while (i < queue.size()) merged.add(queue.get(i++));
+		while (j < batch.size()) merged.add(batch.get(j++));
+
+		queue = merged;
+		size += batch.size();
+		if (metrics != null) metrics.size(size);
+		modificationFlag = true;
+	}
+
+	/**
+	 * Removes the whole prefix of the queue at once, rather than shifting the list left once per element.
+	 */
+	@Override
+	public int drainTo(Collection<? super T> results, int max) {
+		int drained = Math.min(Math.max(max, 0), size);
+		if (drained == 0) return 0;
+
+		for (int i = 0; i < drained; i++) {
+			Element removed = queue.get(i);
+			if (metrics != null && removed.enqueuedAt != 0) metrics.dequeued(removed.enqueuedAt);
+			results.add(removed.val);
+		}
+		queue.subList(0, drained).clear();
+		size -= drained;
 		modificationFlag = true;
+		return drained;
 	}
 
 	@Override
@@ -88,11 +150,25 @@ public class LinearPriorityQueue<T> implements PriorityQueue<T> {
 		
 		Element removed = queue.remove(0);
 		size--;
+		if (metrics != null && removed.enqueuedAt != 0) metrics.dequeued(removed.enqueuedAt);
 		
 		modificationFlag = true;
 		return removed.val;
 	}
 
+	/**
+	 * Attaches a {@link QueueMetrics} recorder to the queue, or detaches it if null. Only elements enqueued while
+	 * a recorder is attached report their time in the queue.
+	 * @param metrics The recorder that will receive the comparisons, sizes and latencies of the queue.
+	 */
+	public void setMetrics(QueueMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	public QueueMetrics getMetrics() {
+		return metrics;
+	}
+
 	@Override
 	public T getFirst() throws EmptyPriorityQueueException {
 		if (isEmpty()) throw new EmptyPriorityQueueException("getFirst: Queue is empty");
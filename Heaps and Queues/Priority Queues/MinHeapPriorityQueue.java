@@ -1,14 +1,18 @@
 package projects.pqueue.priorityqueues; 
 import projects.pqueue.InvalidPriorityException;
+import projects.pqueue.QueueMetrics;
 import projects.pqueue.heaps.ArrayMinHeap;
 import projects.pqueue.heaps.EmptyHeapException;
 import projects.pqueue.heaps.MinHeap;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.ConcurrentModificationException;
 import java.util.Iterator;
 
 /**
- * <p><tt>MinHeapPriorityQueue</tt> is a {@link PriorityQueue} implemented using a {@link MinHeap}.</p>
+ * <p><tt>MinHeapPriorityQueue</tt> is a {@link PriorityQueue} implemented using a {@link MinHeap}. Every element
+ * is stored in the heap together with its priority and an insertion counter, so that elements of equal priority
+ * are dequeued in the order they were inserted.</p>
  *
  * @author Moweizi Xia
  *
@@ -17,19 +21,30 @@ import java.util.Iterator;
  * @see LinearPriorityQueue
  * @see MinHeap
  */
-public class MinHeapPriorityQueue<T> implements PriorityQueue<T>{ 
+public class MinHeapPriorityQueue<T> implements BatchPriorityQueue<T>{ 
 
-	private ArrayMinHeap<Integer> queue;
-	private ArrayList<T> priorities;
+	private ArrayMinHeap<Element> queue;
+	private long sequence;
+	private QueueMetrics metrics;
 	protected boolean modificationFlag;
 	
-	public class Element {
+	public class Element implements Comparable<Element> {
 		private T val;
 		private int priority;
+		private long seq;
+		private long enqueuedAt;
 		
 		public Element(T val, int priority) {
 			this.val = val;
 			this.priority = priority;
+			this.seq = sequence++;
+			this.enqueuedAt = metrics == null ? 0 : metrics.enqueued();
+		}
+
+		@Override
+		public int compareTo(Element other) {
+			if (priority != other.priority) return priority < other.priority ? -1 : 1;
+			return Long.compare(seq, other.seq);
 		}
 	}
 
@@ -37,8 +52,8 @@ public class MinHeapPriorityQueue<T> implements PriorityQueue<T>{
 	 * Simple default constructor.
 	 */
 	public MinHeapPriorityQueue(){
-		queue = new ArrayMinHeap<Integer>();
-		priorities = new ArrayList<T>();
+		queue = new ArrayMinHeap<Element>();
+		sequence = 0;
 		modificationFlag = false;
 	}
 
@@ -46,23 +61,32 @@ public class MinHeapPriorityQueue<T> implements PriorityQueue<T>{
 	public void enqueue(T element, int priority) throws InvalidPriorityException{
 		if (priority < 0) throw new InvalidPriorityException("enqueue: priority is negative");
 		
-		//Element new_element = new Element(element, priority);
-		
-		queue.insert(priority);
-		//System.out.println("Priority of: " + priority + ".  Val of: " + element);
-		//System.out.println("Index of: " + queue.getArrayList().lastIndexOf(priority));
-		priorities.add(queue.getArrayList().lastIndexOf(priority), element);
+		queue.insert(new Element(element, priority));
 		modificationFlag = true;
 	}
 
+	/**
+	 * Enqueues the whole batch with a single call to {@link ArrayMinHeap#insertAll(Collection)}, which heapifies
+	 * bottom-up when the batch is large compared to the queue.
+	 */
+	@Override
+	public void enqueueAll(T[] items, int[] priorities) throws InvalidPriorityException {
+		BatchPriorityQueue.checkBatch(items, priorities);
+
+		ArrayList<Element> batch = new ArrayList<Element>(items.length);
+		for (int i = 0; i < items.length; i++)
+			batch.add(new Element(items[i], priorities[i]));
+		queue.insertAll(batch);
+		modificationFlag = true;
+	}
 
 	@Override
 	public T dequeue() throws EmptyPriorityQueueException {
 		if (isEmpty()) throw new EmptyPriorityQueueException("dequeue: Queue is empty");
 		
-		T removed = priorities.remove(0);
+		T removed = null;
 		try {
-			queue.deleteMin();
+			removed = unwrap(queue.deleteMin());
 		} catch (EmptyHeapException e) {
 			e.printStackTrace();
 		}
@@ -70,25 +94,62 @@ public class MinHeapPriorityQueue<T> implements PriorityQueue<T>{
 		return removed;
 	}
 	
+	@Override
+	public int drainTo(Collection<? super T> results, int max) {
+		int drained = 0;
+		try {
+			while (drained < max && !queue.isEmpty()) {
+				results.add(unwrap(queue.deleteMin()));
+				drained++;
+			}
+		} catch (EmptyHeapException e) {
+			e.printStackTrace();
+		}
+		if (drained > 0) modificationFlag = true;
+		return drained;
+	}
+
+	private T unwrap(Element removed) {
+		if (metrics != null && removed.enqueuedAt != 0) metrics.dequeued(removed.enqueuedAt);
+		return removed.val;
+	}
+
+	/**
+	 * Attaches a {@link QueueMetrics} recorder to the queue and to its underlying heap, or detaches it if null.
+	 * Only elements enqueued while a recorder is attached report their time in the queue.
+	 * @param metrics The recorder that will receive the sift depths, comparisons, sizes and latencies of the queue.
+	 */
+	public void setMetrics(QueueMetrics metrics) {
+		this.metrics = metrics;
+		queue.setMetrics(metrics);
+	}
+
+	public QueueMetrics getMetrics() {
+		return metrics;
+	}
+
 	public void printQueue() {
-		for (T obj: priorities) {
-			System.out.print(obj + " ");
+		for (Element obj: queue) {
+			System.out.print(obj.val + " ");
 		}
 	}
 	
 	public void printPriority() {
-		try {
-			this.queue.printHeap();
-		} catch (EmptyHeapException e) {
-			e.printStackTrace();
+		for (Element obj: queue) {
+			System.out.print(obj.priority + " ");
 		}
+		System.out.print("\n");
 	}
 
 	@Override
 	public T getFirst() throws EmptyPriorityQueueException {
 		if (isEmpty()) throw new EmptyPriorityQueueException("getFirst: Queue is empty");
 		
-		return priorities.get(0);
+		try {
+			return queue.getMin().val;
+		} catch (EmptyHeapException e) {
+			throw new EmptyPriorityQueueException("getFirst: Queue is empty");
+		}
 	}
 
 	@Override
@@ -98,32 +159,29 @@ public class MinHeapPriorityQueue<T> implements PriorityQueue<T>{
 	
 	class MinHeapPriorityQueueIterator implements Iterator<T> {
 
-		int current;
+		Iterator<Element> itr;
 		
 		public MinHeapPriorityQueueIterator() {
-			current = 0;
+			itr = queue.iterator();
 			modificationFlag = false;
 		}
 		
 		@Override
 		public boolean hasNext() {
-			if (current < priorities.size())
-				return true;
-			else
-				return false;
+			return itr.hasNext();
 		}
 
 		@Override
 		public T next() {
 			if (modificationFlag) throw new ConcurrentModificationException("next(): Attempted to traverse a heap after removal.");
-			return priorities.get(current++);
+			return itr.next().val;
 		}
 		
 	}
 
 	@Override
 	public int size() {
-		return priorities.size();
+		return queue.size();
 	}
 
 	@Override
@@ -134,7 +192,6 @@ public class MinHeapPriorityQueue<T> implements PriorityQueue<T>{
 	@Override
 	public void clear() {
 		queue.clear();
-		priorities.clear();
 		modificationFlag = true;
 	}
 }
@@ -0,0 +1,193 @@
+package projects.pqueue;
+import java.util.Arrays;
+
+/**
+ * <p><tt>QueueMetrics</tt> is an opt-in recorder of operation statistics for the {@link projects.pqueue.heaps.MinHeap}s
+ * and {@link projects.pqueue.priorityqueues.PriorityQueue}s of the package. A structure only records anything once a
+ * <tt>QueueMetrics</tt> has been attached to it through its <tt>setMetrics</tt> method; until then, the cost of the
+ * hooks is a single null check per operation.</p>
+ *
+ * <p>The following are tracked:</p>
+ * <ul>
+ *     <li>A histogram of sift depths (the number of levels an element moved during a heap insertion or deletion).</li>
+ *     <li>The number of element comparisons per operation.</li>
+ *     <li>The high-water mark of the size of the structure.</li>
+ *     <li>A log<sub>2</sub> histogram of the time elements spend in a queue, from enqueue to dequeue.</li>
+ * </ul>
+ *
+ * <p>Like the structures it instruments, a <tt>QueueMetrics</tt> is not thread-safe. {@link #snapshot()} returns an
+ * immutable copy of the counters that can be handed to another thread.</p>
+ *
+ * @author Moweizi Xia
+ */
+public class QueueMetrics {
+
+	private static final int BUCKETS = 64;
+
+	private final long[] siftDepths;
+	private final long[] latencies;
+	private long operations;
+	private long comparisons;
+	private long highWaterMark;
+	private long latencySum;
+	private long latencyMax;
+
+	public QueueMetrics() {
+		siftDepths = new long[BUCKETS];
+		latencies = new long[BUCKETS];
+	}
+
+	/**
+	 * Records a heap operation that moved an element through depth levels.
+	 * @param depth The number of levels the element moved.
+	 * @param comparisons The number of element comparisons performed.
+	 */
+	public void sift(int depth, int comparisons) {
+		siftDepths[Math.min(depth, BUCKETS - 1)]++;
+		operations++;
+		this.comparisons += comparisons;
+	}
+
+	/**
+	 * Records an operation that is not a sift, such as a linear scan.
+	 * @param comparisons The number of element comparisons performed.
+	 */
+	public void compared(int comparisons) {
+		operations++;
+		this.comparisons += comparisons;
+	}
+
+	/**
+	 * Records the size of the structure after an insertion.
+	 * @param size The current size.
+	 */
+	public void size(long size) {
+		if (size > highWaterMark) highWaterMark = size;
+	}
+
+	/**
+	 * @return A timestamp to be passed to {@link #dequeued(long)} once the element leaves the queue.
+	 */
+	public long enqueued() {
+		return System.nanoTime();
+	}
+
+	/**
+	 * Records the time an element spent in the queue.
+	 * @param enqueuedAt The timestamp returned by {@link #enqueued()} when the element was enqueued.
+	 */
+	public void dequeued(long enqueuedAt) {
+		long nanos = Math.max(System.nanoTime() - enqueuedAt, 0);
+		latencies[BUCKETS - 1 - Long.numberOfLeadingZeros(nanos | 1)]++;
+		latencySum += nanos;
+		if (nanos > latencyMax) latencyMax = nanos;
+	}
+
+	/**
+	 * Zeroes every counter.
+	 */
+	public void reset() {
+		Arrays.fill(siftDepths, 0);
+		Arrays.fill(latencies, 0);
+		operations = comparisons = highWaterMark = latencySum = latencyMax = 0;
+	}
+
+	/**
+	 * @return An immutable copy of the current counters.
+	 */
+	public Snapshot snapshot() {
+		return new Snapshot(this);
+	}
+
+	/**
+	 * An immutable copy of the counters of a {@link QueueMetrics}.
+	 */
+	public static class Snapshot {
+		private final long[] siftDepths;
+		private final long[] latencies;
+		private final long operations;
+		private final long comparisons;
+		private final long highWaterMark;
+		private final long latencySum;
+		private final long latencyMax;
+
+		private Snapshot(QueueMetrics metrics) {
+			siftDepths = metrics.siftDepths.clone();
+			latencies = metrics.latencies.clone();
+			operations = metrics.operations;
+			comparisons = metrics.comparisons;
+			highWaterMark = metrics.highWaterMark;
+			latencySum = metrics.latencySum;
+			latencyMax = metrics.latencyMax;
+		}
+
+		/**
+		 * @return A copy of the sift depth histogram: entry d counts the sifts that moved an element d levels.
+		 */
+		public long[] getSiftDepthHistogram() {
+			return siftDepths.clone();
+		}
+
+		public double getMeanSiftDepth() {
+			long count = 0, total = 0;
+			for (int depth = 0; depth < siftDepths.length; depth++) {
+				count += siftDepths[depth];
+				total += depth * siftDepths[depth];
+			}
+			return count == 0 ? 0 : (double) total / count;
+		}
+
+		public long getOperations() {
+			return operations;
+		}
+
+		public double getComparisonsPerOperation() {
+			return operations == 0 ? 0 : (double) comparisons / operations;
+		}
+
+		public long getHighWaterMark() {
+			return highWaterMark;
+		}
+
+		public long getDequeued() {
+			long count = 0;
+			for (long bucket: latencies) count += bucket;
+			return count;
+		}
+
+		public double getMeanLatencyNanos() {
+			long count = getDequeued();
+			return count == 0 ? 0 : (double) latencySum / count;
+		}
+
+		public long getMaxLatencyNanos() {
+			return latencyMax;
+		}
+
+		/**
+		 * Estimates a percentile of the time-in-queue distribution. The estimate is the upper bound of the power of two
+		 * bucket the percentile falls into, so it is accurate within a factor of 2.
+		 * @param p The percentile, between 0 and 100.
+		 * @return An upper bound for the p-th percentile of the time spent in the queue, in nanoseconds.
+		 */
+		public long getLatencyPercentileNanos(double p) {
+			long count = getDequeued();
+			if (count == 0) return 0;
+			long rank = (long) Math.ceil(count * Math.min(Math.max(p, 0), 100) / 100.0);
+			long seen = 0;
+			for (int bucket = 0; bucket < latencies.length; bucket++) {
+				seen += latencies[bucket];
+				if (seen >= Math.max(rank, 1)) return Math.min((2L << bucket) - 1, latencyMax);
+			}
+			return latencyMax;
+		}
+
+		@Override
+		public String toString() {
+			return "operations=" + operations + ", meanSiftDepth=" + getMeanSiftDepth()
+					+ ", comparisonsPerOperation=" + getComparisonsPerOperation()
+					+ ", highWaterMark=" + highWaterMark + ", dequeued=" + getDequeued()
+					+ ", meanLatencyNanos=" + getMeanLatencyNanos() + ", maxLatencyNanos=" + latencyMax;
+		}
+	}
+}
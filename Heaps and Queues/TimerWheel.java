@@ -0,0 +1,373 @@
+package projects.pqueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import projects.pqueue.heaps.ArrayMinHeap;
+import projects.pqueue.heaps.EmptyHeapException;
+
+/**
+ * <p>A <tt>TimerWheel</tt> is a hierarchical timing wheel: a scheduler of timeouts over a discrete clock of
+ * <em>ticks</em>. It consists of a number of levels, each made out of 2<sup>b</sup> slots; a slot of level i
+ * spans 2<sup>b&middot;i</sup> ticks, so the wheel as a whole covers the next 2<sup>b&middot;levels</sup> ticks.
+ * Every slot is a doubly linked list of the timeouts that fall into it, which is what makes both scheduling and
+ * cancelling O(1): neither ever needs to search for, or re-order, anything.</p>
+ *
+ * <p>As the clock advances, the slot of the lowest level that corresponds to the current tick fires, and every time
+ * the lowest level wraps around, the next slot of the level above it is <em>cascaded</em> down, redistributing its
+ * timeouts over the finer-grained slots below. Timeouts further in the future than the wheel spans overflow into an
+ * {@link ArrayMinHeap}, and are moved into the wheel once they come within its range. Since a timeout can not be
+ * removed from the middle of a heap, overflowed timeouts are cancelled lazily: they are only marked, and are
+ * discarded when they surface (or when they make up most of the heap).</p>
+ *
+ * <p>The wheel is not thread-safe.</p>
+ *
+ * @param <T> The type of the payloads attached to the timeouts.
+ *
+ * @author Moweizi Xia
+ *
+ * @see ArrayMinHeap
+ * @see projects.pqueue.priorityqueues.MinHeapPriorityQueue
+ */
+public class TimerWheel<T> {
+
+	private static final int DEFAULT_LEVELS = 4;
+	private static final int DEFAULT_SLOT_BITS = 6;
+	private static final int PURGE_THRESHOLD = 64;
+	private static final int MAX_SLOT_BITS = 30;
+	private static final int MAX_SLOTS = Integer.MAX_VALUE - 8;	// the largest array most VMs can allocate
+
+	private static final int WHEEL = 0, OVERFLOW = 1, EXPIRED = 2, CANCELLED = 3;
+
+	private final int levels;
+	private final int bits;
+	private final int mask;
+	private final long span;
+	private final Timeout[] slots;		// levels * 2^bits list heads, level-major
+	private ArrayMinHeap<Timeout> overflow;
+	private int cancelledInOverflow;
+	private long now;			// the next tick to be processed
+	private long seq;
+	private int wheelCount;
+	private int size;
+
+	/**
+	 * <p>A <tt>Timeout</tt> is the handle of a scheduled payload. It can be used to {@link #cancel()} the timeout
+	 * before it fires.</p>
+	 */
+	public class Timeout implements Comparable<Timeout> {
+		private final T payload;
+		private final long deadline;
+		private final long order;
+		private Timeout prev;
+		private Timeout next;
+		private int slot;
+		private int state;
+
+		private Timeout(T payload, long deadline) {
+			this.payload = payload;
+			this.deadline = deadline;
+			this.order = seq++;
+		}
+
+		public T getPayload() {
+			return payload;
+		}
+
+		public long getDeadline() {
+			return deadline;
+		}
+
+		public boolean isExpired() {
+			return state == EXPIRED;
+		}
+
+		public boolean isCancelled() {
+			return state == CANCELLED;
+		}
+
+		/**
+		 * Cancels the timeout in O(1).
+		 * @return true iff the timeout was still pending, false if it had already expired or been cancelled.
+		 */
+		public boolean cancel() {
+			return TimerWheel.this.cancel(this);
+		}
+
+		@Override
+		public int compareTo(Timeout other) {
+			if (deadline != other.deadline) return deadline < other.deadline ? -1 : 1;
+			return Long.compare(order, other.order);
+		}
+	}
+
+	/**
+	 * Default constructor. Creates a wheel of 4 levels of 64 slots each, which spans 2<sup>24</sup> ticks, with its
+	 * clock at tick 0.
+	 */
+	public TimerWheel() {
+		this(DEFAULT_LEVELS, DEFAULT_SLOT_BITS, 0);
+	}
+
+	/**
+	 * Non-default constructor.
+	 * @param levels The number of levels of the wheel.
+	 * @param slotBits The base 2 logarithm of the number of slots per level.
+	 * @param startTick The tick the clock of the wheel starts at.
+	 * @throws IllegalArgumentException if levels or slotBits is smaller than 1, slotBits is larger than 30, the wheel
+	 * would span more than 2<sup>62</sup> ticks, or its slots would not fit in an array.
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	public TimerWheel(int levels, int slotBits, long startTick) {
+		if (levels < 1 || slotBits < 1) throw new IllegalArgumentException("constructor: levels and slotBits must be positive");
+		if (slotBits > MAX_SLOT_BITS) throw new IllegalArgumentException("constructor: slotBits is larger than " + MAX_SLOT_BITS);
+		if ((long) levels * slotBits > 62) throw new IllegalArgumentException("constructor: wheel spans too many ticks");
+		if ((long) levels << slotBits > MAX_SLOTS) throw new IllegalArgumentException("constructor: wheel has too many slots");
+
+		this.levels = levels;
+		this.bits = slotBits;
+		this.mask = (1 << slotBits) - 1;
+		this.span = 1L << (levels * slotBits);
+		this.slots = (Timeout[]) new TimerWheel.Timeout[levels << slotBits];
+		this.overflow = new ArrayMinHeap<Timeout>();
+		this.cancelledInOverflow = 0;
+		this.now = startTick + 1;
+		this.seq = 0;
+		this.wheelCount = 0;
+		this.size = 0;
+	}
+
+	/**
+	 * @return The last tick that the wheel has processed.
+	 */
+	public long currentTick() {
+		return now - 1;
+	}
+
+	/**
+	 * @return The number of pending (neither expired nor cancelled) timeouts.
+	 */
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * Schedules payload to fire at the provided tick. Timeouts whose deadline is not after the {@link #currentTick()
+	 * current tick} fire on the next tick processed.
+	 * @param payload The payload to hand back when the timeout fires.
+	 * @param deadline The tick at which the timeout should fire.
+	 * @return A {@link Timeout} handle that can be used to cancel the timeout.
+	 */
+	public Timeout schedule(T payload, long deadline) {
+		Timeout timeout = new Timeout(payload, deadline);
+		place(timeout);
+		size++;
+		return timeout;
+	}
+
+	/**
+	 * Schedules payload to fire delay ticks after the {@link #currentTick() current tick}.
+	 * @param payload The payload to hand back when the timeout fires.
+	 * @param delay The number of ticks to wait.
+	 * @return A {@link Timeout} handle that can be used to cancel the timeout.
+	 */
+	public Timeout scheduleAfter(T payload, long delay) {
+		return schedule(payload, currentTick() + delay);
+	}
+
+	/**
+	 * Cancels a pending timeout in O(1).
+	 * @param timeout The {@link Timeout} to cancel.
+	 * @return true iff the timeout was still pending.
+	 */
+	public boolean cancel(Timeout timeout) {
+		if (timeout.state == WHEEL) {
+			unlink(timeout);
+		} else if (timeout.state == OVERFLOW) {
+			cancelledInOverflow++;
+		} else {
+			return false;
+		}
+		timeout.state = CANCELLED;
+		size--;
+		if (cancelledInOverflow > PURGE_THRESHOLD && cancelledInOverflow > overflow.size() / 2) purgeOverflow();
+		return true;
+	}
+
+	/**
+	 * Advances the clock by the provided number of ticks, firing every timeout that becomes due.
+	 * @param ticks The number of ticks to advance by.
+	 * @param expired A {@link Collection} that receives the payloads of the fired timeouts, in deadline order.
+	 * @return The number of timeouts fired.
+	 * @throws IllegalArgumentException if ticks is negative.
+	 */
+	public int advance(long ticks, Collection<? super T> expired) {
+		if (ticks < 0) throw new IllegalArgumentException("advance: ticks is negative");
+		return advanceTo(currentTick() + ticks, expired);
+	}
+
+	/**
+	 * Advances the clock up to and including the provided tick, firing every timeout that becomes due. Stretches of
+	 * ticks during which the wheel itself is empty are skipped in O(1).
+	 * @param tick The tick to advance the clock to. Ticks in the past are ignored.
+	 * @param expired A {@link Collection} that receives the payloads of the fired timeouts, in deadline order.
+	 * @return The number of timeouts fired.
+	 */
+	public int advanceTo(long tick, Collection<? super T> expired) {
+		int fired = 0;
+		while (now <= tick) {
+			if (wheelCount == 0) {
+				long next = tick + 1;
+				Timeout first = firstOverflow();
+				if (first != null) next = Math.min(next, first.deadline - span + 1);
+				if (next > now) now = next;
+				if (now > tick) break;
+			}
+			pullOverflow();
+			cascade();
+
+			int index = (int) (now & mask);
+			Timeout timeout = slots[index];
+			slots[index] = null;
+			while (timeout != null) {
+				Timeout next = timeout.next;
+				timeout.prev = timeout.next = null;
+				timeout.state = EXPIRED;
+				expired.add(timeout.payload);
+				wheelCount--;
+				size--;
+				fired++;
+				timeout = next;
+			}
+			now++;
+		}
+		return fired;
+	}
+
+	/**
+	 * Removes every pending timeout without firing it. Their handles report them as cancelled.
+	 */
+	public void clear() {
+		for (int i = 0; i < slots.length; i++) {
+			Timeout timeout = slots[i];
+			slots[i] = null;
+			while (timeout != null) {
+				Timeout next = timeout.next;
+				timeout.prev = timeout.next = null;
+				timeout.state = CANCELLED;
+				timeout = next;
+			}
+		}
+		for (Timeout timeout: overflow)
+			timeout.state = CANCELLED;
+		overflow.clear();
+		cancelledInOverflow = 0;
+		wheelCount = 0;
+		size = 0;
+	}
+
+	/**
+	 * Puts a timeout into the wheel, or into the overflow heap if it is further in the future than the wheel spans.
+	 */
+	private void place(Timeout timeout) {
+		long due = Math.max(timeout.deadline, now);
+		long delta = due - now;
+
+		for (int level = 0; level < levels; level++) {
+			int shift = bits * level;
+			if (delta < (1L << (shift + bits))) {
+				link(timeout, (level << bits) | (int) ((due >>> shift) & mask));
+				return;
+			}
+		}
+		timeout.state = OVERFLOW;
+		overflow.insert(timeout);
+	}
+
+	private void link(Timeout timeout, int slot) {
+		Timeout head = slots[slot];
+		timeout.prev = null;
+		timeout.next = head;
+		if (head != null) head.prev = timeout;
+		slots[slot] = timeout;
+		timeout.slot = slot;
+		timeout.state = WHEEL;
+		wheelCount++;
+	}
+
+	private void unlink(Timeout timeout) {
+		if (timeout.prev != null) timeout.prev.next = timeout.next;
+		else slots[timeout.slot] = timeout.next;
+		if (timeout.next != null) timeout.next.prev = timeout.prev;
+		timeout.prev = timeout.next = null;
+		wheelCount--;
+	}
+
+	/**
+	 * Whenever the current tick wraps a level around, redistributes the next slot of the level above it.
+	 */
+	private void cascade() {
+		for (int level = 1; level < levels; level++) {
+			int shift = bits * level;
+			if (((now >>> (shift - bits)) & mask) != 0) return;
+
+			int slot = (level << bits) | (int) ((now >>> shift) & mask);
+			Timeout timeout = slots[slot];
+			slots[slot] = null;
+			while (timeout != null) {
+				Timeout next = timeout.next;
+				wheelCount--;
+				place(timeout);
+				timeout = next;
+			}
+		}
+	}
+
+	/**
+	 * Moves every overflowed timeout that now falls within the span of the wheel into it.
+	 */
+	private void pullOverflow() {
+		Timeout first = firstOverflow();
+		while (first != null && first.deadline - now < span) {
+			try {
+				overflow.deleteMin();
+			} catch (EmptyHeapException e) {
+				e.printStackTrace();
+			}
+			place(first);
+			first = firstOverflow();
+		}
+	}
+
+	/**
+	 * Discards cancelled timeouts from the top of the overflow heap.
+	 * @return The earliest pending overflowed timeout, or null if there is none.
+	 */
+	private Timeout firstOverflow() {
+		try {
+			while (!overflow.isEmpty()) {
+				Timeout first = overflow.getMin();
+				if (first.state != CANCELLED) return first;
+				overflow.deleteMin();
+				cancelledInOverflow--;
+			}
+		} catch (EmptyHeapException e) {
+			e.printStackTrace();
+		}
+		return null;
+	}
+
+	/**
+	 * Rebuilds the overflow heap out of its pending timeouts only.
+	 */
+	private void purgeOverflow() {
+		ArrayList<Timeout> pending = new ArrayList<Timeout>(overflow.size() - cancelledInOverflow);
+		for (Timeout timeout: overflow)
+			if (timeout.state == OVERFLOW) pending.add(timeout);
+		overflow = new ArrayMinHeap<Timeout>();
+		overflow.insertAll(pending);
+		cancelledInOverflow = 0;
+	}
+}
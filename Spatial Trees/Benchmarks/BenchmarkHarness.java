@@ -0,0 +1,136 @@
+package projects.spatial.benchmarks;
+
+import projects.spatial.knnutils.KNNStats;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * <p><tt>BenchmarkHarness</tt> holds the scaffolding shared by the spatial benchmarks: timing runs with warmup,
+ * reading the allocation counters, keeping results alive through a blackhole, and reporting results as JSON and as a
+ * summary on standard error.</p>
+ *
+ * <p>A {@link Result} is identified by an ordered set of labels, such as the structure, the dataset and the operation,
+ * and records the nanoseconds and the bytes allocated per operation of the fastest measured run. Allocations are read
+ * from the HotSpot thread allocation counters and reported as -1 on JVMs without them.</p>
+ *
+ * @author Moweizi Xia
+ *
+ * @see SpatialBenchmark
+ * @see LeafSizeBenchmark
+ */
+final class BenchmarkHarness {
+
+	/**
+	 * Benchmarks add the results of their operations here, so that the JIT cannot discard the operations.
+	 */
+	static volatile long blackhole;
+
+	static class Result {
+		final Map<String, Object> labels = new LinkedHashMap<String, Object>();
+		double nsPerOp = Double.MAX_VALUE, bytesPerOp, nodesPerQuery = -1;
+
+		Result label(String key, Object value) {
+			labels.put(key, value);
+			return this;
+		}
+	}
+
+	/**
+	 * One timed run: performs a number of operations on state prepared beforehand, and returns how many.
+	 */
+	interface Run {
+		int run();
+	}
+
+	private static final com.sun.management.ThreadMXBean THREADS =
+			ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean
+					? (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean() : null;
+
+	private BenchmarkHarness() {
+	}
+
+	private static long allocatedBytes() {
+		return THREADS == null ? -1 : THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	/*
+	 * Runs setup and then the run it returns warmup + iterations times, and keeps the fastest measured run in result.
+	 * Setup is not timed. If stats is not null, it is reset before every run and the nodes visited per query are
+	 * recorded.
+	 */
+	static Result measure(Result result, Supplier<Run> setup, KNNStats stats, int warmup, int iterations) {
+		for (int i = 0; i < warmup + iterations; i++) {
+			Run run = setup.get();
+			if (stats != null) stats.reset();
+			long allocated = allocatedBytes();
+			long start = System.nanoTime();
+			int ops = run.run();
+			long elapsed = System.nanoTime() - start;
+			allocated = allocated < 0 ? -1 : allocatedBytes() - allocated;
+
+			if (i >= warmup && ops > 0 && (double) elapsed / ops < result.nsPerOp) {
+				result.nsPerOp = (double) elapsed / ops;
+				result.bytesPerOp = allocated < 0 ? -1 : (double) allocated / ops;
+				if (stats != null) result.nodesPerQuery = stats.getNodesVisitedPerQuery();
+			}
+		}
+		return result;
+	}
+
+	static void summarize(List<Result> results, PrintStream out) {
+		for (Result r : results) {
+			StringBuilder line = new StringBuilder();
+			for (Map.Entry<String, Object> label : r.labels.entrySet())
+				line.append(String.format(Locale.ROOT, "%s=%-12s ", label.getKey(), label.getValue()));
+			line.append(String.format(Locale.ROOT, "%12.1f ns/op %10.1f B/op", r.nsPerOp, r.bytesPerOp));
+			if (r.nodesPerQuery >= 0) line.append(String.format(Locale.ROOT, " %10.1f nodes/query", r.nodesPerQuery));
+			out.println(line);
+		}
+	}
+
+	static void writeJson(List<Result> results, Writer out) {
+		PrintWriter writer = new PrintWriter(out);
+		writer.println("[");
+		for (int i = 0; i < results.size(); i++) {
+			Result r = results.get(i);
+			writer.print("  {");
+			for (Map.Entry<String, Object> label : r.labels.entrySet()) {
+				Object value = label.getValue();
+				writer.printf(Locale.ROOT, value instanceof Number ? "\"%s\": %s, " : "\"%s\": \"%s\", ",
+						label.getKey(), value);
+			}
+			writer.printf(Locale.ROOT, "\"nsPerOp\": %.1f, \"bytesPerOp\": %.1f, \"nodesPerQuery\": %.1f}%s%n",
+					r.nsPerOp, r.bytesPerOp, r.nodesPerQuery, i + 1 < results.size() ? "," : "");
+		}
+		writer.println("]");
+		writer.flush();
+	}
+
+	/**
+	 * Writes results as JSON into a file, or on standard output if file is null.
+	 */
+	static void writeJson(List<Result> results, String file) throws IOException {
+		if (file == null) {
+			writeJson(results, new PrintWriter(System.out));
+		} else {
+			try (Writer writer = new FileWriter(file)) {
+				writeJson(results, writer);
+			}
+		}
+	}
+
+	static int[] ints(String list) {
+		return Arrays.stream(list.split(",")).mapToInt(Integer::parseInt).toArray();
+	}
+}
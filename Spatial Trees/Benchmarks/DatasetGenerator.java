@@ -0,0 +1,147 @@
+package projects.spatial.benchmarks;
+
+import projects.spatial.kdpoint.KDPoint;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * <p><tt>DatasetGenerator</tt> produces reproducible synthetic point sets for the spatial benchmarks. All datasets
+ * lie in or around the unit hypercube, and the same seed always yields the same points:</p>
+ *
+ * <ul>
+ *     <li><b>uniform</b>: independent uniformly random points, the friendliest case for every index.</li>
+ *     <li><b>clustered</b>: isotropic Gaussian blobs around random centers, like population or sensor data, with
+ *     very dense regions next to empty ones.</li>
+ *     <li><b>roads</b>: points scattered closely along random line segments, like GPS traces of a road network, which
+ *     concentrates the data on lower-dimensional structures.</li>
+ *     <li><b>duplicates</b>: uniformly random locations that each appear several times, which stresses the handling
+ *     of equal coordinates.</li>
+ * </ul>
+ *
+ * <p>The points of every dataset are returned in random order, so that building a tree by successive insertions does
+ * not degenerate because of the order of the input.</p>
+ *
+ * @author Moweizi Xia
+ */
+public class DatasetGenerator {
+
+	/**
+	 * The names accepted by {@link #generate(String, int, int, long)}.
+	 */
+	public static final String[] DATASETS = {"uniform", "clustered", "roads", "duplicates"};
+
+	private DatasetGenerator() {
+	}
+
+	/**
+	 * Generates one of the datasets of {@link #DATASETS} with its default parameters: 16 clusters with a standard
+	 * deviation of 0.02, 32 roads with a noise of 0.001, or 4 copies of every duplicated point.
+	 * @param name The name of the dataset.
+	 * @param n The number of points.
+	 * @param dims The number of dimensions of the points.
+	 * @param seed The seed of the pseudo-random generator.
+	 * @return The points.
+	 * @throws RuntimeException if the dataset is unknown.
+	 */
+	public static List<KDPoint> generate(String name, int n, int dims, long seed) {
+		switch (name) {
+			case "uniform": return uniform(n, dims, seed);
+			case "clustered": return clustered(n, dims, 16, 0.02, seed);
+			case "roads": return roads(n, dims, 32, 0.001, seed);
+			case "duplicates": return duplicates(n, dims, 4, seed);
+			default: throw new RuntimeException("DatasetGenerator: unknown dataset " + name + ".");
+		}
+	}
+
+	/**
+	 * @param n The number of points.
+	 * @param dims The number of dimensions of the points.
+	 * @param seed The seed of the pseudo-random generator.
+	 * @return n points drawn uniformly from the unit hypercube.
+	 */
+	public static List<KDPoint> uniform(int n, int dims, long seed) {
+		Random random = new Random(seed);
+		List<KDPoint> points = new ArrayList<KDPoint>(n);
+		for (int i = 0; i < n; i++) points.add(new KDPoint(uniform(random, dims)));
+		return points;
+	}
+
+	/**
+	 * @param n The number of points.
+	 * @param dims The number of dimensions of the points.
+	 * @param clusters The number of clusters.
+	 * @param sigma The standard deviation of every cluster, in every dimension.
+	 * @param seed The seed of the pseudo-random generator.
+	 * @return n points, each drawn from a Gaussian around one of clusters centers drawn uniformly from the unit
+	 * hypercube.
+	 */
+	public static List<KDPoint> clustered(int n, int dims, int clusters, double sigma, long seed) {
+		Random random = new Random(seed);
+		double[][] centers = new double[clusters][];
+		for (int c = 0; c < clusters; c++) centers[c] = uniform(random, dims);
+
+		List<KDPoint> points = new ArrayList<KDPoint>(n);
+		for (int i = 0; i < n; i++) {
+			double[] center = centers[random.nextInt(clusters)], c = new double[dims];
+			for (int d = 0; d < dims; d++) c[d] = center[d] + sigma * random.nextGaussian();
+			points.add(new KDPoint(c));
+		}
+		return points;
+	}
+
+	/**
+	 * @param n The number of points.
+	 * @param dims The number of dimensions of the points.
+	 * @param roads The number of line segments.
+	 * @param noise The standard deviation of the distance of a point from its segment, in every dimension.
+	 * @param seed The seed of the pseudo-random generator.
+	 * @return n points, each drawn uniformly along one of roads segments between points of the unit hypercube, plus
+	 * Gaussian noise.
+	 */
+	public static List<KDPoint> roads(int n, int dims, int roads, double noise, long seed) {
+		Random random = new Random(seed);
+		double[][] from = new double[roads][], to = new double[roads][];
+		for (int r = 0; r < roads; r++) {
+			from[r] = uniform(random, dims);
+			to[r] = uniform(random, dims);
+		}
+
+		List<KDPoint> points = new ArrayList<KDPoint>(n);
+		for (int i = 0; i < n; i++) {
+			int r = random.nextInt(roads);
+			double t = random.nextDouble();
+			double[] c = new double[dims];
+			for (int d = 0; d < dims; d++) c[d] = from[r][d] + t * (to[r][d] - from[r][d]) + noise * random.nextGaussian();
+			points.add(new KDPoint(c));
+		}
+		return points;
+	}
+
+	/**
+	 * @param n The number of points.
+	 * @param dims The number of dimensions of the points.
+	 * @param copies The number of times every location appears; the last one may appear fewer times.
+	 * @param seed The seed of the pseudo-random generator.
+	 * @return n points over about n / copies locations drawn uniformly from the unit hypercube, in random order.
+	 */
+	public static List<KDPoint> duplicates(int n, int dims, int copies, long seed) {
+		Random random = new Random(seed);
+		List<KDPoint> points = new ArrayList<KDPoint>(n);
+		double[] c = null;
+		for (int i = 0; i < n; i++) {
+			if (i % copies == 0) c = uniform(random, dims);
+			points.add(new KDPoint(c.clone()));
+		}
+		Collections.shuffle(points, random);
+		return points;
+	}
+
+	private static double[] uniform(Random random, int dims) {
+		double[] c = new double[dims];
+		for (int d = 0; d < dims; d++) c[d] = random.nextDouble();
+		return c;
+	}
+}
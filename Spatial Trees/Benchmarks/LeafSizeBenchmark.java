@@ -0,0 +1,151 @@
+package projects.spatial.benchmarks;
+
+import projects.spatial.benchmarks.BenchmarkHarness.Result;
+import projects.spatial.kdpoint.KDPoint;
+import projects.spatial.knnutils.BoundedPriorityQueue;
+import projects.spatial.nodes.KDTreeNode;
+import projects.spatial.trees.ImplicitKDTree;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * <p><tt>LeafSizeBenchmark</tt> is a self-contained benchmark that picks the leaf bucket size B of an
+ * {@link ImplicitKDTree} for a given dataset shape. For every candidate B, it builds the tree over the uniform dataset
+ * of {@link DatasetGenerator} and measures, through the {@link BenchmarkHarness}, the build time per point and the
+ * time of kNN and range queries; a balanced {@link KDTreeNode} (one point per node) is measured alongside as the
+ * baseline. Results are written as a JSON array, and the fastest B for kNN queries is reported on standard error.</p>
+ *
+ * <p>Usage: <tt>LeafSizeBenchmark [--size N] [--dims D] [--queries Q] [--k K] [--radius R]
+ * [--leaf-sizes 1,2,4,...] [--warmup W] [--iterations I] [--out file.json]</tt>. The radius is a fraction of the side
+ * of the unit hypercube the points are drawn from.</p>
+ *
+ * @author Moweizi Xia
+ */
+public class LeafSizeBenchmark {
+
+	private static final int[] DEFAULT_LEAF_SIZES = {1, 2, 4, 8, 16, 32, 64, 128};
+
+	/**
+	 * A uniform view over the two trees, so that both are measured by the same loops.
+	 */
+	interface Subject {
+		void kNearestNeighbors(int k, KDPoint anchor, BoundedPriorityQueue<KDPoint> queue);
+		void range(KDPoint anchor, List<KDPoint> results, double range);
+	}
+
+	static Subject implicit(ImplicitKDTree tree) {
+		return new Subject() {
+			public void kNearestNeighbors(int k, KDPoint anchor, BoundedPriorityQueue<KDPoint> queue) {
+				tree.kNearestNeighbors(k, anchor, queue);
+			}
+
+			public void range(KDPoint anchor, List<KDPoint> results, double range) {
+				tree.range(anchor, results, range);
+			}
+		};
+	}
+
+	static Subject pointer(KDTreeNode tree, int dims) {
+		return new Subject() {
+			public void kNearestNeighbors(int k, KDPoint anchor, BoundedPriorityQueue<KDPoint> queue) {
+				tree.kNearestNeighbors(k, anchor, queue, 0, dims);
+			}
+
+			public void range(KDPoint anchor, List<KDPoint> results, double range) {
+				tree.range(anchor, results, range, 0, dims);
+			}
+		};
+	}
+
+	static Subject build(String structure, int leafSize, List<KDPoint> points, int dims) {
+		if (structure.equals("ImplicitKDTree"))
+			return implicit(new ImplicitKDTree(points, dims, leafSize));
+		return pointer(KDTreeNode.build(points, 0, dims), dims);
+	}
+
+	static Result result(String structure, int leafSize, String operation, int size, int dims, int k) {
+		return new Result().label("structure", structure).label("leafSize", leafSize).label("operation", operation)
+				.label("size", size).label("dims", dims).label("k", k);
+	}
+
+	static List<Result> measure(String structure, int leafSize, List<KDPoint> points, List<KDPoint> queries, int dims,
+			int k, double radius, int warmup, int iterations) {
+		List<Result> results = new ArrayList<Result>();
+		int n = points.size();
+
+		results.add(BenchmarkHarness.measure(result(structure, leafSize, "build", n, dims, k), () -> () -> {
+			BenchmarkHarness.blackhole += System.identityHashCode(build(structure, leafSize, points, dims));
+			return n;
+		}, null, warmup, iterations));
+
+		Subject subject = build(structure, leafSize, points, dims);
+		results.add(BenchmarkHarness.measure(result(structure, leafSize, "knn", n, dims, k), () -> () -> {
+			long found = 0;
+			for (KDPoint anchor : queries) {
+				BoundedPriorityQueue<KDPoint> queue = new BoundedPriorityQueue<KDPoint>(k);
+				subject.kNearestNeighbors(k, anchor, queue);
+				found += queue.size();
+			}
+			BenchmarkHarness.blackhole += found;
+			return queries.size();
+		}, null, warmup, iterations));
+		results.add(BenchmarkHarness.measure(result(structure, leafSize, "range", n, dims, k), () -> () -> {
+			long found = 0;
+			List<KDPoint> hits = new ArrayList<KDPoint>();
+			for (KDPoint anchor : queries) {
+				hits.clear();
+				subject.range(anchor, hits, radius);
+				found += hits.size();
+			}
+			BenchmarkHarness.blackhole += found;
+			return queries.size();
+		}, null, warmup, iterations));
+		return results;
+	}
+
+	public static void main(String[] args) throws IOException {
+		int size = 1_000_000, dims = 3, queries = 10_000, k = 10;
+		double radius = 0.02;
+		int[] leafSizes = DEFAULT_LEAF_SIZES;
+		int warmup = 2, iterations = 3;
+		String out = null;
+
+		for (int i = 0; i < args.length; i++) {
+			switch (args[i]) {
+				case "--size": size = Integer.parseInt(args[++i]); break;
+				case "--dims": dims = Integer.parseInt(args[++i]); break;
+				case "--queries": queries = Integer.parseInt(args[++i]); break;
+				case "--k": k = Integer.parseInt(args[++i]); break;
+				case "--radius": radius = Double.parseDouble(args[++i]); break;
+				case "--leaf-sizes": leafSizes = BenchmarkHarness.ints(args[++i]); break;
+				case "--warmup": warmup = Integer.parseInt(args[++i]); break;
+				case "--iterations": iterations = Integer.parseInt(args[++i]); break;
+				case "--out": out = args[++i]; break;
+				default: throw new RuntimeException("Unknown argument " + args[i]);
+			}
+		}
+
+		List<KDPoint> points = DatasetGenerator.uniform(size, dims, 42);
+		List<KDPoint> anchors = DatasetGenerator.uniform(queries, dims, 43);
+
+		List<Result> results = new ArrayList<Result>();
+		results.addAll(measure("KDTreeNode", 1, points, anchors, dims, k, radius, warmup, iterations));
+		Result best = null;
+		for (int leafSize : leafSizes) {
+			for (Result result : measure("ImplicitKDTree", leafSize, points, anchors, dims, k, radius, warmup, iterations)) {
+				results.add(result);
+				if (result.labels.get("operation").equals("knn") && (best == null || result.nsPerOp < best.nsPerOp))
+					best = result;
+			}
+		}
+		BenchmarkHarness.summarize(results, System.err);
+		if (best != null)
+			System.err.printf(Locale.ROOT, "Fastest kNN leaf size for n=%d, dims=%d, k=%d: B=%s%n", size, dims, k,
+					best.labels.get("leafSize"));
+
+		BenchmarkHarness.writeJson(results, out);
+	}
+}
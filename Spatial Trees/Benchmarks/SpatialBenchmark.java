@@ -0,0 +1,260 @@
+package projects.spatial.benchmarks;
+
+import projects.spatial.benchmarks.BenchmarkHarness.Result;
+import projects.spatial.benchmarks.BenchmarkHarness.Run;
+import projects.spatial.kdpoint.KDPoint;
+import projects.spatial.knnutils.BoundedPriorityQueue;
+import projects.spatial.knnutils.KNNStats;
+import projects.spatial.nodes.KDTreeNode;
+import projects.spatial.nodes.PRQuadBlackNode;
+import projects.spatial.nodes.PRQuadNode;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Supplier;
+
+/**
+ * <p><tt>SpatialBenchmark</tt> is a self-contained benchmark that compares {@link KDTreeNode} and the PR-QuadTree
+ * ({@link PRQuadNode}) on the synthetic datasets of {@link DatasetGenerator}, across dataset sizes and dimensions.
+ * For every combination, it measures:</p>
+ *
+ * <ul>
+ *     <li><b>build</b>: a balanced {@link KDTreeNode#build(java.util.Collection, int, int) bulk build} for the
+ *     KD-Tree, successive insertions for the PR-QuadTree, which has no bulk build. Reported per point.</li>
+ *     <li><b>insert</b> and <b>delete</b>: updates of freshly built trees, with new points and with stored ones.</li>
+ *     <li><b>search</b>: lookups of which half hit a stored point.</li>
+ *     <li><b>range</b>, <b>rangeCount</b> and <b>knn</b>: collecting range queries, their count-only streaming
+ *     variant, and k nearest neighbors queries. The PR-QuadTree nodes only implement insertion, deletion and search,
+ *     so these are measured on the KD-Tree alone.</li>
+ * </ul>
+ *
+ * <p>Every measurement reports nanoseconds and bytes allocated per operation, and for kNN queries, the nodes visited
+ * per query, as counted by {@link KNNStats}, through the {@link BenchmarkHarness}. The PR-QuadTree only covers two
+ * dimensions, and its bucketing parameter is raised, when needed, above the number of copies of the most duplicated
+ * point, since no split can separate equal points.</p>
+ *
+ * <p>Usage: <tt>SpatialBenchmark [--sizes 10000,100000] [--dims 2,3,8] [--datasets uniform,clustered,roads,duplicates]
+ * [--queries Q] [--k K] [--radius R] [--bucket B] [--warmup W] [--iterations I] [--out file.json]</tt>. Results are
+ * written as a JSON array, and summarized on standard error.</p>
+ *
+ * @author Moweizi Xia
+ */
+public class SpatialBenchmark {
+
+	static Result measure(String structure, String dataset, String operation, int size, int dims, Supplier<Run> setup,
+			KNNStats stats, int warmup, int iterations) {
+		Result result = new Result().label("structure", structure).label("dataset", dataset)
+				.label("operation", operation).label("size", size).label("dims", dims);
+		return BenchmarkHarness.measure(result, setup, stats, warmup, iterations);
+	}
+
+	/**
+	 * A PR-QuadTree over a square that contains a given point set, driven through its root {@link PRQuadNode}.
+	 */
+	static class QuadTree {
+		final KDPoint centroid;
+		final int k, bucket;
+		PRQuadNode root;
+
+		QuadTree(List<KDPoint> points, int bucket) {
+			double minX = Double.POSITIVE_INFINITY, minY = Double.POSITIVE_INFINITY;
+			double maxX = Double.NEGATIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+			for (KDPoint p : points) {
+				minX = Math.min(minX, p.coords[0]);
+				maxX = Math.max(maxX, p.coords[0]);
+				minY = Math.min(minY, p.coords[1]);
+				maxY = Math.max(maxY, p.coords[1]);
+			}
+			centroid = new KDPoint((minX + maxX) / 2, (minY + maxY) / 2);
+			// The square spanned by a node of parameter k has a side of 2^k; leave room for points inserted later.
+			k = (int) Math.ceil(Math.log(2 * Math.max(Math.max(maxX - minX, maxY - minY), 1e-9)) / Math.log(2)) + 1;
+			this.bucket = Math.max(bucket, maxMultiplicity(points));
+		}
+
+		void insert(KDPoint p) {
+			root = root == null ? new PRQuadBlackNode(centroid, k, bucket, p) : root.insert(p, k);
+		}
+
+		void delete(KDPoint p) {
+			if (root != null) root = root.delete(p);
+		}
+
+		boolean search(KDPoint p) {
+			return root != null && root.search(p);
+		}
+	}
+
+	static int maxMultiplicity(List<KDPoint> points) {
+		double[][] sorted = new double[points.size()][];
+		for (int i = 0; i < sorted.length; i++) sorted[i] = points.get(i).coords;
+		Arrays.sort(sorted, Arrays::compare);
+		int max = sorted.length == 0 ? 0 : 1;
+		for (int i = 1, run = 1; i < sorted.length; i++) {
+			run = Arrays.equals(sorted[i], sorted[i - 1]) ? run + 1 : 1;
+			max = Math.max(max, run);
+		}
+		return max;
+	}
+
+	static List<Result> kdTree(String dataset, List<KDPoint> points, List<KDPoint> fresh, List<KDPoint> stored,
+			List<KDPoint> lookups, int dims, int k, double radius, int warmup, int iterations) {
+		List<Result> results = new ArrayList<Result>();
+		int n = points.size();
+		String name = "KDTreeNode";
+
+		results.add(measure(name, dataset, "build", n, dims, () -> () -> {
+			BenchmarkHarness.blackhole += KDTreeNode.build(points, 0, dims).size();
+			return n;
+		}, null, warmup, iterations));
+		results.add(measure(name, dataset, "insert", n, dims, () -> {
+			KDTreeNode tree = KDTreeNode.build(points, 0, dims);
+			return () -> {
+				for (KDPoint p : fresh) tree.insert(p, 0, dims);
+				return fresh.size();
+			};
+		}, null, warmup, iterations));
+		results.add(measure(name, dataset, "delete", n, dims, () -> {
+			KDTreeNode tree = KDTreeNode.build(points, 0, dims);
+			return () -> {
+				for (KDPoint p : stored) tree.delete(p, 0, dims);
+				return stored.size();
+			};
+		}, null, warmup, iterations));
+
+		KDTreeNode tree = KDTreeNode.build(points, 0, dims);
+		results.add(measure(name, dataset, "search", n, dims, () -> () -> {
+			int hits = 0;
+			for (KDPoint p : lookups) if (tree.search(p, 0, dims)) hits++;
+			BenchmarkHarness.blackhole += hits;
+			return lookups.size();
+		}, null, warmup, iterations));
+		results.add(measure(name, dataset, "range", n, dims, () -> () -> {
+			long found = 0;
+			for (KDPoint anchor : fresh) {
+				List<KDPoint> hits = new ArrayList<KDPoint>();
+				tree.range(anchor, hits, radius, 0, dims);
+				found += hits.size();
+			}
+			BenchmarkHarness.blackhole += found;
+			return fresh.size();
+		}, null, warmup, iterations));
+		results.add(measure(name, dataset, "rangeCount", n, dims, () -> () -> {
+			long found = 0;
+			for (KDPoint anchor : fresh) found += tree.countRange(anchor, radius, 0, dims);
+			BenchmarkHarness.blackhole += found;
+			return fresh.size();
+		}, null, warmup, iterations));
+		KNNStats stats = new KNNStats();
+		results.add(measure(name, dataset, "knn", n, dims, () -> () -> {
+			long found = 0;
+			for (KDPoint anchor : fresh) {
+				BoundedPriorityQueue<KDPoint> queue = new BoundedPriorityQueue<KDPoint>(k);
+				tree.kNearestNeighbors(k, anchor, queue, 0, dims, stats);
+				found += queue.size();
+			}
+			BenchmarkHarness.blackhole += found;
+			return fresh.size();
+		}, stats, warmup, iterations));
+		return results;
+	}
+
+	static List<Result> quadTree(String dataset, List<KDPoint> points, List<KDPoint> fresh, List<KDPoint> stored,
+			List<KDPoint> lookups, int bucket, int warmup, int iterations) {
+		List<Result> results = new ArrayList<Result>();
+		int n = points.size();
+		String name = "PRQuadTree";
+
+		// New points may fall outside of the bounding box of the dataset, so the square also covers them.
+		List<KDPoint> all = new ArrayList<KDPoint>(points);
+		all.addAll(fresh);
+		Supplier<QuadTree> built = () -> {
+			QuadTree tree = new QuadTree(all, bucket);
+			for (KDPoint p : points) tree.insert(p);
+			return tree;
+		};
+
+		results.add(measure(name, dataset, "build", n, 2, () -> () -> {
+			QuadTree tree = new QuadTree(all, bucket);
+			for (KDPoint p : points) tree.insert(p);
+			BenchmarkHarness.blackhole += tree.root == null ? 0 : tree.root.count();
+			return n;
+		}, null, warmup, iterations));
+		results.add(measure(name, dataset, "insert", n, 2, () -> {
+			QuadTree tree = built.get();
+			return () -> {
+				for (KDPoint p : fresh) tree.insert(p);
+				return fresh.size();
+			};
+		}, null, warmup, iterations));
+		results.add(measure(name, dataset, "delete", n, 2, () -> {
+			QuadTree tree = built.get();
+			return () -> {
+				for (KDPoint p : stored) tree.delete(p);
+				return stored.size();
+			};
+		}, null, warmup, iterations));
+
+		QuadTree tree = built.get();
+		results.add(measure(name, dataset, "search", n, 2, () -> () -> {
+			int hits = 0;
+			for (KDPoint p : lookups) if (tree.search(p)) hits++;
+			BenchmarkHarness.blackhole += hits;
+			return lookups.size();
+		}, null, warmup, iterations));
+		return results;
+	}
+
+	public static void main(String[] args) throws IOException {
+		int[] sizes = {10_000, 100_000}, dimensions = {2, 3, 8};
+		String[] datasets = DatasetGenerator.DATASETS;
+		int queries = 1_000, k = 10, bucket = 4;
+		double radius = 0.02;
+		int warmup = 1, iterations = 3;
+		String out = null;
+
+		for (int i = 0; i < args.length; i++) {
+			switch (args[i]) {
+				case "--sizes": sizes = BenchmarkHarness.ints(args[++i]); break;
+				case "--dims": dimensions = BenchmarkHarness.ints(args[++i]); break;
+				case "--datasets": datasets = args[++i].split(","); break;
+				case "--queries": queries = Integer.parseInt(args[++i]); break;
+				case "--k": k = Integer.parseInt(args[++i]); break;
+				case "--radius": radius = Double.parseDouble(args[++i]); break;
+				case "--bucket": bucket = Integer.parseInt(args[++i]); break;
+				case "--warmup": warmup = Integer.parseInt(args[++i]); break;
+				case "--iterations": iterations = Integer.parseInt(args[++i]); break;
+				case "--out": out = args[++i]; break;
+				default: throw new RuntimeException("Unknown argument " + args[i]);
+			}
+		}
+
+		List<Result> results = new ArrayList<Result>();
+		for (String dataset : datasets) {
+			for (int dims : dimensions) {
+				for (int size : sizes) {
+					// Queries and new points are drawn by the same call as the dataset, so that they share its cluster
+					// centers or road segments, and are split off its tail.
+					int extra = Math.min(queries, size);
+					List<KDPoint> generated = DatasetGenerator.generate(dataset, size + extra, dims, 42);
+					List<KDPoint> points = new ArrayList<KDPoint>(generated.subList(0, size));
+					List<KDPoint> fresh = new ArrayList<KDPoint>(generated.subList(size, size + extra));
+					Random random = new Random(44);
+					List<KDPoint> stored = new ArrayList<KDPoint>(points.subList(0, fresh.size()));
+					List<KDPoint> lookups = new ArrayList<KDPoint>();
+					for (int q = 0; q < fresh.size(); q++)
+						lookups.add(random.nextBoolean() ? points.get(random.nextInt(size)) : fresh.get(q));
+
+					results.addAll(kdTree(dataset, points, fresh, stored, lookups, dims, k, radius, warmup, iterations));
+					if (dims == 2)
+						results.addAll(quadTree(dataset, points, fresh, stored, lookups, bucket, warmup, iterations));
+				}
+			}
+		}
+
+		BenchmarkHarness.summarize(results, System.err);
+		BenchmarkHarness.writeJson(results, out);
+	}
+}
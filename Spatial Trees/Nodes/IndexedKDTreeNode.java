@@ -0,0 +1,502 @@
+package projects.spatial.nodes;
+
+import projects.spatial.kdpoint.KDPoint;
+import projects.spatial.knnutils.BoundedPriorityQueue;
+import projects.spatial.knnutils.PointStore;
+
+import java.util.Arrays;
+import java.util.function.IntPredicate;
+
+/**
+ * <p>{@link IndexedKDTreeNode} is a KD-Tree over the rows of a {@link PointStore}. It holds no {@link KDPoint}s and
+ * no node objects: every node is a slot in three parallel <tt>int</tt> arrays, holding the row index of its point and
+ * the slots of its two children. Together with the store, a point costs its coordinates plus 12 bytes, against the
+ * node, {@link KDPoint} and coordinate array objects of a {@link KDTreeNode}, and the garbage collector sees a handful
+ * of arrays instead of three objects per point.</p>
+ *
+ * <p>The tree follows the conventions of {@link KDTreeNode}: the root splits on dimension 0, points that are larger
+ * than or equal to a node in its splitting dimension go to its right, and points equal to the anchor of a query are
+ * never part of its results. Results are reported as row indices, so that nothing is copied. Deleting a point frees
+ * its node slot for reuse, but leaves its row in the store.</p>
+ *
+ * @author  Moweizi Xia
+ *
+ * @see PointStore
+ * @see KDTreeNode
+ */
+public class IndexedKDTreeNode {
+
+    private static final int NIL = -1;
+
+    private final PointStore store;
+    private final int dims;
+    private int[] point;
+    private int[] left;
+    private int[] right;
+    /* The number of slots ever allocated, and the head of the list of freed ones, linked through left. */
+    private int slots;
+    private int free = NIL;
+    private int root = NIL;
+    private int size;
+
+    /**
+     * The explicit stack of the iterative traversals, like the one of {@link KDTreeNode}: every entry holds a node
+     * slot, the dimension it splits on and a lower bound on the squared distance from the anchor of a query to the
+     * points of its subtree.
+     */
+    private static final class IndexStack {
+    	private int[] nodes = new int[64];
+    	private int[] dims = new int[64];
+    	private double[] bounds = new double[64];
+    	private int size;
+
+    	/* The dimension and the bound of the last popped entry. */
+    	int dim;
+    	double bound;
+
+    	void push(int node, int dim, double bound) {
+    		if (size == nodes.length) {
+    			nodes = Arrays.copyOf(nodes, 2 * size);
+    			dims = Arrays.copyOf(dims, 2 * size);
+    			bounds = Arrays.copyOf(bounds, 2 * size);
+    		}
+    		nodes[size] = node;
+    		dims[size] = dim;
+    		bounds[size] = bound;
+    		size++;
+    	}
+
+    	int pop() {
+    		size--;
+    		dim = dims[size];
+    		bound = bounds[size];
+    		return nodes[size];
+    	}
+
+    	boolean isEmpty() {
+    		return size == 0;
+    	}
+
+    	void clear() {
+    		size = 0;
+    	}
+    }
+
+    private static final ThreadLocal<IndexStack> STACK = ThreadLocal.withInitial(IndexStack::new);
+
+    /**
+     * Creates an empty tree over the provided {@link PointStore}. Rows of the store are only indexed once they are
+     * {@link #insert(int) inserted}.
+     * @param store The {@link PointStore} that holds the coordinates of the points.
+     */
+    public IndexedKDTreeNode(PointStore store){
+        this.store = store;
+        this.dims = store.dims();
+        point = new int[16];
+        left = new int[16];
+        right = new int[16];
+    }
+
+    /**
+     * Builds a perfectly balanced tree over all the rows of the provided {@link PointStore}, in O(n log n) expected
+     * time, like {@link KDTreeNode#build(java.util.Collection, int, int)}.
+     * @param store The {@link PointStore} that holds the points to index.
+     * @return The tree.
+     */
+    public static IndexedKDTreeNode build(PointStore store){
+        IndexedKDTreeNode tree = new IndexedKDTreeNode(store);
+        int n = store.size();
+        int[] rows = new int[n];
+        for (int i = 0; i < n; i++) rows[i] = i;
+        tree.point = new int[Math.max(n, 16)];
+        tree.left = new int[tree.point.length];
+        tree.right = new int[tree.point.length];
+        tree.root = tree.buildHelper(rows, 0, n, 0);
+        tree.size = n;
+        return tree;
+    }
+
+    /* Builds the subtree holding rows[lo, hi), and returns its slot. */
+    private int buildHelper(int[] rows, int lo, int hi, int dim) {
+    	if (lo >= hi) return NIL;
+
+    	int split = partition(rows, lo, hi, dim);
+    	int node = allocate(rows[split]);
+    	left[node] = buildHelper(rows, lo, split, (dim + 1) % dims);
+    	right[node] = buildHelper(rows, split + 1, hi, (dim + 1) % dims);
+    	return node;
+    }
+
+    /* Three-way quickselect for the median of rows[lo, hi) in dim; returns the first row equal to it. */
+    private int partition(int[] rows, int lo, int hi, int dim) {
+    	int median = lo + (hi - lo) / 2;
+    	int l = lo, r = hi;
+    	while (true) {
+    		double a = store.get(rows[l], dim), b = store.get(rows[l + (r - l) / 2], dim),
+    				c = store.get(rows[r - 1], dim);
+    		double pivot = Math.max(Math.min(a, b), Math.min(Math.max(a, b), c));
+
+    		int lt = l, i = l, gt = r - 1;
+    		while (i <= gt) {
+    			double v = store.get(rows[i], dim);
+    			if (v < pivot) swap(rows, lt++, i++);
+    			else if (v > pivot) swap(rows, i, gt--);
+    			else i++;
+    		}
+
+    		if (median < lt) r = lt;
+    		else if (median > gt) l = gt + 1;
+    		else return lt;
+    	}
+    }
+
+    private static void swap(int[] rows, int i, int j) {
+    	int temp = rows[i];
+    	rows[i] = rows[j];
+    	rows[j] = temp;
+    }
+
+    private int allocate(int row) {
+    	int node;
+    	if (free != NIL) {
+    		node = free;
+    		free = left[node];
+    	} else {
+    		if (slots == point.length) {
+    			point = Arrays.copyOf(point, 2 * slots);
+    			left = Arrays.copyOf(left, 2 * slots);
+    			right = Arrays.copyOf(right, 2 * slots);
+    		}
+    		node = slots++;
+    	}
+    	point[node] = row;
+    	left[node] = right[node] = NIL;
+    	return node;
+    }
+
+    private void release(int node) {
+    	left[node] = free;
+    	free = node;
+    }
+
+    /**
+     * @return The {@link PointStore} that this indexes.
+     */
+    public PointStore store(){
+        return store;
+    }
+
+    /**
+     * @return The number of points in the tree.
+     */
+    public int size(){
+        return size;
+    }
+
+    /**
+     * Indexes a row of the {@link PointStore}.
+     * @param row The row index of the point to insert.
+     * @throws RuntimeException if row is not a row of the store.
+     */
+    public void insert(int row){
+        if (row < 0 || row >= store.size())
+            throw new RuntimeException("insert: " + row + " is not a row of the store.");
+
+        int node = allocate(row);
+        size++;
+        if (root == NIL) {
+            root = node;
+            return;
+        }
+
+        int curr = root, dim = 0;
+        while (true) {
+            if (store.get(row, dim) < store.get(point[curr], dim)) {
+                if (left[curr] == NIL) {
+                    left[curr] = node;
+                    return;
+                }
+                curr = left[curr];
+            }
+            else {
+                if (right[curr] == NIL) {
+                    right[curr] = node;
+                    return;
+                }
+                curr = right[curr];
+            }
+            dim = (dim + 1) % dims;
+        }
+    }
+
+    /**
+     * Appends a point to the {@link PointStore} and indexes it.
+     * @param coords The coordinates of the point.
+     * @return The row index of the point.
+     */
+    public int insert(double... coords){
+        int row = store.add(coords);
+        insert(row);
+        return row;
+    }
+
+    /**
+     * Removes a point with the provided coordinates from the tree, replacing it like
+     * {@link KDTreeNode#delete(KDPoint, int, int)} does. Its row stays in the {@link PointStore}.
+     * @param pIn The coordinates of the point to delete.
+     * @return The row index of the point removed.
+     * @throws RuntimeException if no point of the tree has the coordinates of pIn.
+     */
+    public int delete(KDPoint pIn){
+        double[] q = store.quantize(pIn.coords);
+        int parent = NIL, curr = root, dim = 0;
+        while (curr != NIL && !store.same(point[curr], q)) {
+            parent = curr;
+            curr = q[dim] < store.get(point[curr], dim) ? left[curr] : right[curr];
+            dim = (dim + 1) % dims;
+        }
+        if (curr == NIL)
+            throw new RuntimeException("Point does not exist!");
+
+        int removed = point[curr];
+        while (true) {
+        	if (left[curr] == NIL && right[curr] == NIL) {
+        		if (parent == NIL) root = NIL;
+        		else if (left[parent] == curr) left[parent] = NIL;
+        		else right[parent] = NIL;
+        		release(curr);
+        		size--;
+        		return removed;
+        	}
+
+        	// Replace the point with the minimum in dim of a subtree, then go on deleting that minimum from it.
+        	if (right[curr] == NIL) {
+        		right[curr] = left[curr];
+        		left[curr] = NIL;
+        	}
+        	int nextDim = (dim + 1) % dims;
+        	int min = findMin(right[curr], dim, nextDim);
+        	point[curr] = min;
+
+        	// Find the node of that exact row: it lies on the insertion path of its coordinates.
+        	parent = curr;
+        	curr = right[curr];
+        	dim = nextDim;
+        	while (point[curr] != min) {
+        		parent = curr;
+        		curr = store.get(min, dim) < store.get(point[curr], dim) ? left[curr] : right[curr];
+        		dim = (dim + 1) % dims;
+        	}
+        }
+    }
+
+    /* The row with the minimum value in dimension i in the subtree of node, which splits on dim. */
+    private int findMin(int node, int i, int dim) {
+    	IndexStack stack = traversalStack();
+    	int min = point[node];
+    	stack.push(node, dim, 0);
+    	while (!stack.isEmpty()) {
+    		int curr = stack.pop();
+    		int currDim = stack.dim;
+    		if (store.get(point[curr], i) < store.get(min, i)) min = point[curr];
+
+    		int nextDim = (currDim + 1) % dims;
+    		if (left[curr] != NIL) stack.push(left[curr], nextDim, 0);
+    		if (right[curr] != NIL && currDim != i) stack.push(right[curr], nextDim, 0);
+    	}
+    	return min;
+    }
+
+    /**
+     * Searches the tree for a point with the provided coordinates, rounded to the precision of the
+     * {@link PointStore}.
+     * @param pIn The coordinates to search for.
+     * @return true iff such a point is in the tree.
+     */
+    public boolean search(KDPoint pIn){
+        double[] q = store.quantize(pIn.coords);
+        int curr = root, dim = 0;
+        while (curr != NIL) {
+            if (store.same(point[curr], q))
+                return true;
+            curr = q[dim] < store.get(point[curr], dim) ? left[curr] : right[curr];
+            dim = (dim + 1) % dims;
+        }
+        return false;
+    }
+
+    /**
+     * Streams the row indices of all the points within distance range <b>INCLUSIVE</b> of the anchor, except for
+     * the points equal to the anchor, to a visitor, like
+     * {@link KDTreeNode#range(KDPoint, double, int, int, projects.spatial.knnutils.PointVisitor)}.
+     * @param anchor The centroid of the hypersphere that the range query implicitly creates.
+     * @param range The <b>INCLUSIVE</b> range from the anchor.
+     * @param visitor Receives the row index of every point found. The query stops as soon as it returns false.
+     * @return false if the visitor terminated the query early, true otherwise.
+     */
+    public boolean range(KDPoint anchor, double range, IntPredicate visitor){
+        if (root == NIL || range < 0) return true;
+
+        double[] q = anchor.coords;
+        double rangeSq = range * range;
+        IndexStack stack = traversalStack();
+        stack.push(root, 0, 0);
+        while (!stack.isEmpty()) {
+            int curr = stack.pop();
+            int dim = stack.dim;
+            int row = point[curr];
+            if (store.distance(row, q) <= rangeSq && !store.same(row, q) && !visitor.test(row)) {
+                stack.clear();
+                return false;
+            }
+
+            double diff = q[dim] - store.get(row, dim);
+            int near = diff < 0 ? left[curr] : right[curr], far = diff < 0 ? right[curr] : left[curr];
+            if (far != NIL && diff * diff <= rangeSq) stack.push(far, (dim + 1) % dims, 0);
+            if (near != NIL) stack.push(near, (dim + 1) % dims, 0);
+        }
+        return true;
+    }
+
+    /**
+     * Streams the row indices of all the points in the axis-aligned box [low, high], bounds <b>INCLUSIVE</b>, to a
+     * visitor.
+     * @param low The lowest corner of the box.
+     * @param high The highest corner of the box.
+     * @param visitor Receives the row index of every point found. The query stops as soon as it returns false.
+     * @return false if the visitor terminated the query early, true otherwise.
+     */
+    public boolean range(double[] low, double[] high, IntPredicate visitor){
+        if (root == NIL) return true;
+
+        IndexStack stack = traversalStack();
+        stack.push(root, 0, 0);
+        while (!stack.isEmpty()) {
+            int curr = stack.pop();
+            int dim = stack.dim;
+            int row = point[curr];
+            if (inBox(row, low, high) && !visitor.test(row)) {
+                stack.clear();
+                return false;
+            }
+
+            double split = store.get(row, dim);
+            if (right[curr] != NIL && high[dim] >= split) stack.push(right[curr], (dim + 1) % dims, 0);
+            if (left[curr] != NIL && low[dim] < split) stack.push(left[curr], (dim + 1) % dims, 0);
+        }
+        return true;
+    }
+
+    /**
+     * Counts the points that {@link #range(KDPoint, double, IntPredicate)} would report.
+     * @param anchor The centroid of the hypersphere that the range query implicitly creates.
+     * @param range The <b>INCLUSIVE</b> range from the anchor.
+     * @return The number of points, other than those equal to the anchor, within range of the anchor.
+     */
+    public int countRange(KDPoint anchor, double range){
+        int[] count = new int[1];
+        range(anchor, range, row -> { count[0]++; return true; });
+        return count[0];
+    }
+
+	/*
+	 * The stack of a new traversal. A visitor may itself query a tree on the same thread while the thread's stack is
+	 * in use by the range query that called it; every traversal takes its stack from here, so the nested one then
+	 * gets a stack of its own.
+	 */
+	private static IndexStack traversalStack() {
+		IndexStack stack = STACK.get();
+		return stack.isEmpty() ? stack : new IndexStack();
+	}
+
+	private boolean inBox(int row, double[] low, double[] high) {
+		for (int d = 0; d < dims; d++) {
+			double c = store.get(row, d);
+			if (c < low[d] || c > high[d]) return false;
+		}
+		return true;
+	}
+
+    /**
+     * Finds the nearest neighbor of the anchor, excluding the points equal to the anchor.
+     * @param anchor The &quot;anchor&quot; {@link KDPoint} of the nearest neighbor query.
+     * @return The row index of the nearest neighbor, or -1 if there is none.
+     */
+    public int nearestNeighbor(KDPoint anchor){
+        if (root == NIL) return NIL;
+
+        double[] q = anchor.coords;
+        int best = NIL;
+        double bestDist = Double.POSITIVE_INFINITY;
+        IndexStack stack = traversalStack();
+        stack.push(root, 0, 0);
+        while (!stack.isEmpty()) {
+            int curr = stack.pop();
+            int dim = stack.dim;
+            if (stack.bound >= bestDist) continue;
+
+            int row = point[curr];
+            double dist = store.distance(row, q);
+            if (dist < bestDist && !store.same(row, q)) {
+                bestDist = dist;
+                best = row;
+            }
+
+            double diff = q[dim] - store.get(row, dim);
+            int near = diff < 0 ? left[curr] : right[curr], far = diff < 0 ? right[curr] : left[curr];
+            if (far != NIL) stack.push(far, (dim + 1) % dims, diff * diff);
+            if (near != NIL) stack.push(near, (dim + 1) % dims, stack.bound);
+        }
+        return best;
+    }
+
+    /**
+     * Adds the row indices of the k nearest neighbors of the anchor, excluding the points equal to the anchor, to
+     * the provided {@link BoundedPriorityQueue}, with their distances from the anchor as priorities.
+     * @param k The total number of neighbors to retrieve.
+     * @param anchor The &quot;anchor&quot; {@link KDPoint} of the nearest neighbor query.
+     * @param queue A {@link BoundedPriorityQueue} of capacity k that receives the neighbors.
+     */
+    public void kNearestNeighbors(int k, KDPoint anchor, BoundedPriorityQueue<Integer> queue){
+        if (root == NIL) return;
+
+        double[] q = anchor.coords;
+        IndexStack stack = traversalStack();
+        stack.push(root, 0, 0);
+        while (!stack.isEmpty()) {
+            int curr = stack.pop();
+            int dim = stack.dim;
+            if (queue.size() == k && stack.bound >= queue.lastPriority()) continue;
+
+            int row = point[curr];
+            double dist = store.distance(row, q);
+            if ((queue.size() < k || dist < queue.lastPriority()) && !store.same(row, q))
+                queue.enqueue(row, dist);
+
+            double diff = q[dim] - store.get(row, dim);
+            int near = diff < 0 ? left[curr] : right[curr], far = diff < 0 ? right[curr] : left[curr];
+            if (far != NIL) stack.push(far, (dim + 1) % dims, diff * diff);
+            if (near != NIL) stack.push(near, (dim + 1) % dims, stack.bound);
+        }
+    }
+
+    /**
+     * @return The height of the tree, -1 if it is empty.
+     */
+    public int height(){
+        if (root == NIL) return -1;
+
+        IndexStack stack = traversalStack();
+        int height = 0;
+        // The dimension slot of the stack entries holds their depth here.
+        stack.push(root, 0, 0);
+        while (!stack.isEmpty()) {
+            int curr = stack.pop();
+            int depth = stack.dim;
+            height = Math.max(height, depth);
+            if (left[curr] != NIL) stack.push(left[curr], depth + 1, 0);
+            if (right[curr] != NIL) stack.push(right[curr], depth + 1, 0);
+        }
+        return height;
+    }
+}
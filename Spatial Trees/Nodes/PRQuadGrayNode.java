@@ -19,6 +19,8 @@ import projects.spatial.trees.PRQuadTree;
 public class PRQuadGrayNode extends PRQuadNode{
 
     private PRQuadNode NW, NE, SW, SE;
+    /* The number of points and the height of the subtree, kept up to date by insert and delete. */
+    private int count, height;
 
     /**
      * Creates a {@link PRQuadGrayNode}  with the provided {@link KDPoint} as a centroid;
@@ -31,6 +33,8 @@ public class PRQuadGrayNode extends PRQuadNode{
     public PRQuadGrayNode(KDPoint centroid, int k, int bucketingParam){
         super(centroid, k, bucketingParam); // Call to the super class' protected constructor to properly initialize the object!
         NW = NE = SW = SE = null;
+        count = 0;
+        height = -1;
     }
 
 
@@ -71,6 +75,7 @@ public class PRQuadGrayNode extends PRQuadNode{
         			centroid.coords[1] - Math.pow(2, k-2)), k-1, bucketingParam, p);
         	else SE = SE.insert(p, k-1);
     	}
+    	refresh();
     	return this;
     }
 
@@ -99,39 +104,23 @@ public class PRQuadGrayNode extends PRQuadNode{
      */
     @Override
     public PRQuadNode delete(KDPoint p) {
-    	if (p.coords[0] < centroid.coords[0] && p.coords[1] > centroid.coords[1]) { 
-    		NW = NW.delete(p);
-    	}
-    	else if (p.coords[0] > centroid.coords[0] && p.coords[1] > centroid.coords[1]) {
-    		NE = NE.delete(p);
-        } 
-    	else if (p.coords[0] < centroid.coords[0] && p.coords[1] < centroid.coords[1]) {
-    		SW = SW.delete(p);
-        }
-    	else {
-    		SE = SE.delete(p);
-    	}
-    	
-    	int total = 0;
-    	
-    	if (NW != null) {
-    		if (NW.height() != 0) return this;
-    		else total += NW.count();
-    	}
-    	if (NE != null) {
-    		if (NE.height() != 0) return this;
-    		else total += NE.count();
-    	}
-    	if (SW != null) {
-    		if (SW.height() != 0) return this;
-    		else total += SW.count();
-    	}
-    	if (SE != null) {
-    		if (SE.height() != 0) return this;
-    		else total += SE.count();
-    	}
-    	
-    	if (total <= bucketingParam) {
+    	// Route like insert does: points on a dividing line belong to the east or the north quadrant.
+    	boolean west = p.coords[0] < centroid.coords[0], south = p.coords[1] < centroid.coords[1];
+    	PRQuadNode child = west ? (south ? SW : NW) : (south ? SE : NE);
+    	if (child == null) return this;
+
+    	int before = child.count();
+    	child = child.delete(p);
+    	if ((child == null ? 0 : child.count()) == before) return this;
+
+    	if (west && !south) NW = child;
+    	else if (!west && !south) NE = child;
+    	else if (west) SW = child;
+    	else SE = child;
+    	refresh();
+
+    	// A height of 1 means that every child is black.
+    	if (height == 1 && count <= bucketingParam) {
     		Collection<KDPoint> childrens = new ArrayList<KDPoint>();
     		if (NW != null) childrens.addAll(((PRQuadBlackNode) NW).getPoints());
     		if (NE != null) childrens.addAll(((PRQuadBlackNode) NE).getPoints());
@@ -145,64 +134,44 @@ public class PRQuadGrayNode extends PRQuadNode{
 
     @Override
     public boolean search(KDPoint p){
-    	if (p.coords[0] < centroid.coords[0] && p.coords[1] > centroid.coords[1]) { 
-    		if (NW != null) return NW.search(p);
-    		else return false;
-    	}
-    	else if (p.coords[0] > centroid.coords[0] && p.coords[1] > centroid.coords[1]) {
-    		if (NE != null) return NE.search(p);
-    		else return false;
-        } 
-    	else if (p.coords[0] < centroid.coords[0] && p.coords[1] < centroid.coords[1]) {
-    		if (SW != null) return SW.search(p);
-    		else return false;
-        }
-    	else {
-    		if (SE != null) return SE.search(p);
-    		else return false;
-    	}
+    	boolean west = p.coords[0] < centroid.coords[0], south = p.coords[1] < centroid.coords[1];
+    	PRQuadNode child = west ? (south ? SW : NW) : (south ? SE : NE);
+    	return child != null && child.search(p);
+    }
+
+    /*
+     * Recomputes the cached count and height from the children, whose own are cached as well, after one of them
+     * changed. This is O(1), so updates only pay for the nodes on their path.
+     */
+    private void refresh() {
+    	count = 0;
+    	height = -1;
+    	include(NW);
+    	include(NE);
+    	include(SW);
+    	include(SE);
     }
 
+    private void include(PRQuadNode child) {
+    	if (child == null) return;
+    	count += child.count();
+    	height = Math.max(height, child.height() + 1);
+    }
+
+    /**
+     * @return The height of the subtree rooted at this, which is cached: this runs in O(1).
+     */
     @Override
     public int height(){
-        int NWheight = -1;
-        int NEheight = -1; 
-        int SWheight = -1;
-        int SEheight = -1;
-        int height = -1;
-        int height2 = -1;
-        
-        if (NW != null) NWheight = NW.height() + 1;
-        if (NE != null) NEheight = NE.height() + 1;
-        if (SW != null) SWheight = SW.height() + 1;
-        if (SE != null) SEheight = SE.height() + 1;
-        
-        height = Math.max(NWheight, NEheight); 
-        height2 = Math.max(SWheight, SEheight);
-        return Math.max(height, height2);
+        return height;
     }
 
+    /**
+     * @return The number of {@link KDPoint}s stored in the subtree rooted at this, which is cached: this runs in
+     * O(1).
+     */
     @Override
     public int count(){
-        int total = 0;
-        
-    	if (NW != null) {
-    		if (NW.height() != 0) total += NW.count();
-    		else total += NW.count();
-    	}
-    	if (NE != null) {
-    		if (NE.height() != 0) total += NE.count();
-    		else total += NE.count();
-    	}
-    	if (SW != null) {
-    		if (SW.height() != 0) total += SW.count();
-    		else total += SW.count();
-    	}
-    	if (SE != null) {
-    		if (SE.height() != 0) total += SE.count();
-    		else total += SE.count();
-    	}
-        
-        return total;
+        return count;
     }
 }
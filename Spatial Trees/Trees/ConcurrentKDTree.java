@@ -0,0 +1,557 @@
+package projects.spatial.trees;
+
+import projects.spatial.kdpoint.KDPoint;
+import projects.spatial.knnutils.BoundedPriorityQueue;
+import projects.spatial.knnutils.NNData;
+import projects.spatial.knnutils.PointVisitor;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * <p>{@link ConcurrentKDTree} is a KD-Tree that one or more writer threads can update while any number of reader
+ * threads query it. Its nodes are immutable: an insertion or a deletion copies the path from the root to the nodes it
+ * changes, shares every other subtree with the previous version, and publishes the new version by swapping a single
+ * volatile root reference, in the manner of read-copy-update.</p>
+ *
+ * <ul>
+ *     <li>Readers never block and never observe a partial update: every query runs against the version that was
+ *     current when it started, and {@link #snapshot()} pins a version for as many queries as needed.</li>
+ *     <li>Writers are serialized with each other, and each one allocates O(log n) new nodes per update, amortized.</li>
+ *     <li>Versions that no reader holds any more are reclaimed by the garbage collector.</li>
+ * </ul>
+ *
+ * <p>To keep updates and queries logarithmic without ever mutating a node, the tree is kept balanced like a
+ * scapegoat tree: an insertion that leaves a node on its path with a child holding more than
+ * {@value #BALANCE_FACTOR} of its points rebuilds the subtree of the highest such node, and the whole tree is rebuilt
+ * once deletions have shrunk it below {@value #BALANCE_FACTOR} of its size at the last full rebuild. Both rebuilds
+ * happen on fresh nodes, off to the side of the published version.</p>
+ *
+ * <p>Points tied with a node in its splitting dimension all go to its right, so ties can leave a subtree unbalanced
+ * right after it is rebuilt. Such a subtree is only rebuilt again once it has doubled in size, which keeps the cost of
+ * rebuilds amortized, but the height bound does not hold for it: in particular, copies of the same point form a chain,
+ * on which every operation is linear. Traversals use explicit stacks, so that long chains do not overflow the call
+ * stack.</p>
+ *
+ * <p>The queries follow the conventions of {@link projects.spatial.nodes.KDTreeNode}: distances are those reported by
+ * {@link KDPoint#distance(KDPoint)}, points equal to the anchor of a query are never part of its results, and the
+ * {@link KDPoint}s added to collections and queues are fresh copies.</p>
+ *
+ * @author Moweizi Xia
+ *
+ * @see projects.spatial.nodes.KDTreeNode
+ */
+public class ConcurrentKDTree {
+
+	/**
+	 * The maximum fraction of the points of a subtree that either of its children may hold after an insertion.
+	 */
+	public static final double BALANCE_FACTOR = 0.7;
+
+	private final int dims;
+	private final Object writeLock = new Object();
+	private volatile Node root;
+	/* The size of the tree at its last full rebuild, or its largest size since then. Guarded by writeLock. */
+	private int maxSize;
+
+	private static final class Node {
+		final KDPoint val;
+		final Node left, right;
+		final int size;
+		/* The size of the subtree when a rebuild left it unbalanced, because of points tied with val, or 0. */
+		final int tiedSize;
+
+		Node(KDPoint val, Node left, Node right) {
+			this(val, left, right, 0);
+		}
+
+		Node(KDPoint val, Node left, Node right, int tiedSize) {
+			this.val = val;
+			this.left = left;
+			this.right = right;
+			this.size = 1 + size(left) + size(right);
+			this.tiedSize = tiedSize;
+		}
+	}
+
+	/* A node to visit during a traversal, with its splitting dimension and, if not negative, a lower bound on the
+	 * distance from the anchor of a query to its subtree, which prunes it. */
+	private static final class Frame {
+		final Node node;
+		final int dim;
+		final double bound;
+
+		Frame(Node node, int dim, double bound) {
+			this.node = node;
+			this.dim = dim;
+			this.bound = bound;
+		}
+	}
+
+	/* One node of a deletion path: the point of its copy, its child off the path, and the side of the path. */
+	private static final class Step {
+		final KDPoint val;
+		final Node sibling;
+		final boolean pathLeft;
+		final int tiedSize;
+
+		Step(KDPoint val, Node sibling, boolean pathLeft, int tiedSize) {
+			this.val = val;
+			this.sibling = sibling;
+			this.pathLeft = pathLeft;
+			this.tiedSize = tiedSize;
+		}
+	}
+
+	private static class Nearest {
+		KDPoint point;
+		double dist = Double.POSITIVE_INFINITY;
+	}
+
+	private static int size(Node curr) {
+		return curr == null ? 0 : curr.size;
+	}
+
+	private static void push(Deque<Frame> stack, Node node, int dim, double bound) {
+		if (node != null) stack.push(new Frame(node, dim, bound));
+	}
+
+	private static boolean unbalanced(int leftSize, int rightSize) {
+		int size = leftSize + rightSize + 1;
+		return Math.max(leftSize, rightSize) > BALANCE_FACTOR * size && size > 2;
+	}
+
+	/**
+	 * Creates an empty tree.
+	 * @param dims The total number of dimensions that the space considers.
+	 * @throws RuntimeException if dims &lt; 1.
+	 */
+	public ConcurrentKDTree(int dims) {
+		if (dims < 1)
+			throw new RuntimeException("ConcurrentKDTree: dims cannot be less than 1.");
+		this.dims = dims;
+	}
+
+	/**
+	 * Creates a perfectly balanced tree over copies of the provided {@link KDPoint}s.
+	 * @param points The {@link KDPoint}s to index.
+	 * @param dims The total number of dimensions that the space considers.
+	 * @throws RuntimeException if dims &lt; 1.
+	 */
+	public ConcurrentKDTree(Collection<KDPoint> points, int dims) {
+		this(dims);
+		KDPoint[] array = new KDPoint[points.size()];
+		int i = 0;
+		for (KDPoint p : points) array[i++] = new KDPoint(p);
+		root = build(array, 0, array.length, 0);
+		maxSize = array.length;
+	}
+
+	/*
+	 * Builds a balanced subtree out of points[lo, hi), which it reorders. Points equal to the split value in its
+	 * dimension must all go right, so ties can make the right side of a node the larger one, up to every point but
+	 * one when they are all equal: the nodes of the right spine are therefore found in a loop and linked bottom-up,
+	 * and only the left subtrees, which hold at most half of the points, are built recursively. The nodes that ties
+	 * leave unbalanced record their size, so that insertions do not rebuild them again right away.
+	 */
+	private Node build(KDPoint[] points, int lo, int hi, int dim) {
+		List<KDPoint> spine = new ArrayList<KDPoint>();
+		List<Node> lefts = new ArrayList<Node>();
+		while (lo < hi) {
+			if (identical(points, lo, hi)) {
+				// Equal points can only form a chain, which needs no sorting.
+				for (; lo < hi; lo++) {
+					spine.add(points[lo]);
+					lefts.add(null);
+				}
+				break;
+			}
+			int d = dim;
+			Arrays.sort(points, lo, hi, Comparator.comparingDouble(p -> p.coords[d]));
+			int split = lo + (hi - lo) / 2;
+			while (split > lo && points[split - 1].coords[dim] == points[split].coords[dim]) split--;
+
+			dim = (dim + 1) % dims;
+			spine.add(points[split]);
+			lefts.add(build(points, lo, split, dim));
+			lo = split + 1;
+		}
+
+		Node curr = null;
+		for (int i = spine.size() - 1; i >= 0; i--) {
+			Node left = lefts.get(i);
+			int tiedSize = unbalanced(size(left), size(curr)) ? 1 + size(left) + size(curr) : 0;
+			curr = new Node(spine.get(i), left, curr, tiedSize);
+		}
+		return curr;
+	}
+
+	private static boolean identical(KDPoint[] points, int lo, int hi) {
+		for (int i = lo + 1; i < hi; i++)
+			if (!points[i].equals(points[lo])) return false;
+		return true;
+	}
+
+	/**
+	 * An immutable version of a {@link ConcurrentKDTree}. Queries on a snapshot are unaffected by later updates of
+	 * the tree, so that several of them see the exact same points.
+	 */
+	public final class Snapshot {
+		private final Node root;
+
+		private Snapshot(Node root) {
+			this.root = root;
+		}
+
+		/**
+		 * @return The number of points in this version of the tree.
+		 */
+		public int size() {
+			return ConcurrentKDTree.size(root);
+		}
+
+		/**
+		 * @return The height of this version of the tree, -1 if it is empty.
+		 */
+		public int height() {
+			// Frames carry the depth of their node in place of a dimension.
+			int height = -1;
+			Deque<Frame> stack = new ArrayDeque<Frame>();
+			push(stack, root, 0, -1);
+			while (!stack.isEmpty()) {
+				Frame frame = stack.pop();
+				height = Math.max(height, frame.dim);
+				push(stack, frame.node.left, frame.dim + 1, -1);
+				push(stack, frame.node.right, frame.dim + 1, -1);
+			}
+			return height;
+		}
+
+		/**
+		 * Searches this version of the tree for the provided {@link KDPoint}.
+		 * @param pIn The {@link KDPoint} to search for.
+		 * @return true iff a point with the same coordinates as pIn is in the tree.
+		 */
+		public boolean search(KDPoint pIn) {
+			return find(root, pIn, 0);
+		}
+
+		/**
+		 * Adds copies of all the points within distance range <b>INCLUSIVE</b> of the anchor, except for the anchor
+		 * itself, to the provided {@link Collection}.
+		 * @param anchor The centroid of the hypersphere that the range query implicitly creates.
+		 * @param results A {@link Collection} that accumulates all the {@link KDPoint}s found.
+		 * @param range The <b>INCLUSIVE</b> range from the anchor.
+		 */
+		public void range(KDPoint anchor, Collection<KDPoint> results, double range) {
+			range(anchor, range, p -> results.add(new KDPoint(p)));
+		}
+
+		/**
+		 * Streams all the points within distance range <b>INCLUSIVE</b> of the anchor, except for the anchor itself,
+		 * to a {@link PointVisitor}, without copying them.
+		 * @param anchor The centroid of the hypersphere that the range query implicitly creates.
+		 * @param range The <b>INCLUSIVE</b> range from the anchor.
+		 * @param visitor The {@link PointVisitor} that receives every point found. The query stops as soon as it
+		 *                returns false.
+		 * @return false if the visitor terminated the query early, true otherwise.
+		 */
+		public boolean range(KDPoint anchor, double range, PointVisitor visitor) {
+			if (range < 0) return true;
+
+			double range2 = range * range;
+			Deque<Frame> stack = new ArrayDeque<Frame>();
+			push(stack, root, 0, -1);
+			while (!stack.isEmpty()) {
+				Frame frame = stack.pop();
+				Node curr = frame.node;
+				if (anchor.distance(curr.val) <= range2 && !anchor.equals(curr.val) && !visitor.visit(curr.val))
+					return false;
+
+				double diff = anchor.coords[frame.dim] - curr.val.coords[frame.dim];
+				int next = (frame.dim + 1) % dims;
+				if (diff >= 0 || diff * diff <= range2) push(stack, curr.right, next, -1);
+				if (diff < 0 || diff * diff <= range2) push(stack, curr.left, next, -1);
+			}
+			return true;
+		}
+
+		/**
+		 * Finds the nearest neighbor of the anchor in this version of the tree, excluding the anchor itself.
+		 * @param anchor The &quot;anchor&quot; {@link KDPoint} of the nearest neighbor query.
+		 * @return An object of type {@link NNData} holding a copy of the nearest neighbor and its distance from the
+		 * anchor, or a null neighbor if there is none.
+		 */
+		public NNData<KDPoint> nearestNeighbor(KDPoint anchor) {
+			Nearest best = new Nearest();
+			Deque<Frame> stack = new ArrayDeque<Frame>();
+			push(stack, root, 0, -1);
+			while (!stack.isEmpty()) {
+				Frame frame = stack.pop();
+				if (frame.bound >= best.dist) continue;
+
+				Node curr = frame.node;
+				double dist = anchor.distance(curr.val);
+				if (dist < best.dist && !anchor.equals(curr.val)) {
+					best.dist = dist;
+					best.point = curr.val;
+				}
+
+				// The far side is pushed first, so that it is only popped, and pruned, once the near side is done.
+				double diff = anchor.coords[frame.dim] - curr.val.coords[frame.dim];
+				int next = (frame.dim + 1) % dims;
+				push(stack, diff < 0 ? curr.right : curr.left, next, diff * diff);
+				push(stack, diff < 0 ? curr.left : curr.right, next, -1);
+			}
+			return new NNData<KDPoint>(best.point == null ? null : new KDPoint(best.point), best.dist);
+		}
+
+		/**
+		 * Adds copies of the k nearest neighbors of the anchor in this version of the tree, excluding the anchor
+		 * itself, to the provided {@link BoundedPriorityQueue}, with their distances from the anchor as priorities.
+		 * @param k The total number of neighbors to retrieve.
+		 * @param anchor The &quot;anchor&quot; {@link KDPoint} of the nearest neighbor query.
+		 * @param queue A {@link BoundedPriorityQueue} that receives the neighbors.
+		 */
+		public void kNearestNeighbors(int k, KDPoint anchor, BoundedPriorityQueue<KDPoint> queue) {
+			if (root == null) return;
+
+			BoundedPriorityQueue<KDPoint> candidates = new BoundedPriorityQueue<KDPoint>(k);
+			Deque<Frame> stack = new ArrayDeque<Frame>();
+			push(stack, root, 0, -1);
+			while (!stack.isEmpty()) {
+				Frame frame = stack.pop();
+				boolean full = candidates.size() == candidates.capacity();
+				if (frame.bound >= 0 && full && frame.bound >= candidates.lastPriority()) continue;
+
+				Node curr = frame.node;
+				double dist = anchor.distance(curr.val);
+				if ((!full || dist < candidates.lastPriority()) && !anchor.equals(curr.val))
+					candidates.enqueue(curr.val, dist);
+
+				double diff = anchor.coords[frame.dim] - curr.val.coords[frame.dim];
+				int next = (frame.dim + 1) % dims;
+				push(stack, diff < 0 ? curr.right : curr.left, next, diff * diff);
+				push(stack, diff < 0 ? curr.left : curr.right, next, -1);
+			}
+			while (!candidates.isEmpty()) {
+				KDPoint survivor = candidates.dequeue();
+				queue.enqueue(new KDPoint(survivor), anchor.distance(survivor));
+			}
+		}
+
+	}
+
+	/**
+	 * Pins the current version of the tree. The snapshot costs O(1) to take and keeps its version reachable for as
+	 * long as it is.
+	 * @return An immutable {@link Snapshot} of the tree.
+	 */
+	public Snapshot snapshot() {
+		return new Snapshot(root);
+	}
+
+	/**
+	 * @return The number of dimensions of the points in the tree.
+	 */
+	public int dims() {
+		return dims;
+	}
+
+	/**
+	 * @return The number of points in the current version of the tree.
+	 */
+	public int size() {
+		return size(root);
+	}
+
+	/**
+	 * @return The height of the current version of the tree, -1 if it is empty.
+	 * @see Snapshot#height()
+	 */
+	public int height() {
+		return snapshot().height();
+	}
+
+	/**
+	 * Searches the current version of the tree for the provided {@link KDPoint}.
+	 * @see Snapshot#search(KDPoint)
+	 */
+	public boolean search(KDPoint pIn) {
+		return find(root, pIn, 0);
+	}
+
+	/**
+	 * Runs a range query against the current version of the tree.
+	 * @see Snapshot#range(KDPoint, Collection, double)
+	 */
+	public void range(KDPoint anchor, Collection<KDPoint> results, double range) {
+		snapshot().range(anchor, results, range);
+	}
+
+	/**
+	 * Runs a streaming range query against the current version of the tree.
+	 * @see Snapshot#range(KDPoint, double, PointVisitor)
+	 */
+	public boolean range(KDPoint anchor, double range, PointVisitor visitor) {
+		return snapshot().range(anchor, range, visitor);
+	}
+
+	/**
+	 * Runs a nearest neighbor query against the current version of the tree.
+	 * @see Snapshot#nearestNeighbor(KDPoint)
+	 */
+	public NNData<KDPoint> nearestNeighbor(KDPoint anchor) {
+		return snapshot().nearestNeighbor(anchor);
+	}
+
+	/**
+	 * Runs a k nearest neighbors query against the current version of the tree.
+	 * @see Snapshot#kNearestNeighbors(int, KDPoint, BoundedPriorityQueue)
+	 */
+	public void kNearestNeighbors(int k, KDPoint anchor, BoundedPriorityQueue<KDPoint> queue) {
+		snapshot().kNearestNeighbors(k, anchor, queue);
+	}
+
+	private boolean find(Node curr, KDPoint pIn, int dim) {
+		while (curr != null) {
+			if (pIn.equals(curr.val)) return true;
+			curr = pIn.coords[dim] < curr.val.coords[dim] ? curr.left : curr.right;
+			dim = (dim + 1) % dims;
+		}
+		return false;
+	}
+
+	/**
+	 * Inserts a copy of the provided {@link KDPoint} and publishes the new version of the tree. Like
+	 * {@link projects.spatial.nodes.KDTreeNode#insert(KDPoint, int, int)}, points that are larger than or equal to a
+	 * node in its splitting dimension go to its right.
+	 * @param pIn The {@link KDPoint} to insert.
+	 */
+	public void insert(KDPoint pIn) {
+		KDPoint point = new KDPoint(pIn);
+		synchronized (writeLock) {
+			root = insertHelper(root, point);
+			maxSize = Math.max(maxSize, size(root));
+		}
+	}
+
+	/*
+	 * Returns a copy of curr with p, copying the insertion path bottom-up. The subtree of the highest node on the path
+	 * that p leaves unbalanced is rebuilt, unless ties left that node unbalanced at its last rebuild and it has not
+	 * doubled in size since then, since rebuilding it again would not separate the tied points.
+	 */
+	private Node insertHelper(Node curr, KDPoint p) {
+		List<Node> path = new ArrayList<Node>();
+		int scapegoat = -1, dim = 0;
+		for (; curr != null; dim = (dim + 1) % dims) {
+			boolean left = p.coords[dim] < curr.val.coords[dim];
+			int leftSize = size(curr.left) + (left ? 1 : 0), rightSize = size(curr.right) + (left ? 0 : 1);
+			if (scapegoat < 0 && unbalanced(leftSize, rightSize) && curr.size + 1 >= 2 * curr.tiedSize)
+				scapegoat = path.size();
+			path.add(curr);
+			curr = left ? curr.left : curr.right;
+		}
+
+		Node copy = new Node(p, null, null);
+		for (int depth = path.size() - 1; depth >= 0; depth--) {
+			Node parent = path.get(depth);
+			dim = depth % dims;
+			if (p.coords[dim] < parent.val.coords[dim])
+				copy = new Node(parent.val, copy, parent.right, parent.tiedSize);
+			else
+				copy = new Node(parent.val, parent.left, copy, parent.tiedSize);
+			if (depth == scapegoat) copy = rebuild(copy, dim);
+		}
+		return copy;
+	}
+
+	/**
+	 * Deletes the provided {@link KDPoint} and publishes the new version of the tree. The node holding it is
+	 * replaced as in {@link projects.spatial.nodes.KDTreeNode#delete(KDPoint, int, int)}, on copies.
+	 * @param pIn The {@link KDPoint} to delete.
+	 * @return true if the point was in the tree, false otherwise.
+	 */
+	public boolean delete(KDPoint pIn) {
+		synchronized (writeLock) {
+			Node curr = root;
+			if (!find(curr, pIn, 0)) return false;
+
+			curr = deleteHelper(curr, pIn, 0);
+			if (size(curr) < BALANCE_FACTOR * maxSize) {
+				curr = rebuild(curr, 0);
+				maxSize = size(curr);
+			}
+			root = curr;
+			return true;
+		}
+	}
+
+	/* Returns a copy of curr without target, which must be in it, walking the path down and copying it bottom-up. */
+	private Node deleteHelper(Node curr, KDPoint target, int dim) {
+		List<Step> path = new ArrayList<Step>();
+		while (curr.left != null || curr.right != null || !curr.val.equals(target)) {
+			int next = (dim + 1) % dims;
+			if (curr.val.equals(target)) {
+				// Replace the point with the minimum in dim of a subtree, which then goes right without that minimum.
+				Node subtree = curr.right != null ? curr.right : curr.left;
+				KDPoint min = findMin(subtree, dim, next);
+				path.add(new Step(min, curr.right != null ? curr.left : null, false, 0));
+				curr = subtree;
+				target = min;
+			} else if (target.coords[dim] < curr.val.coords[dim]) {
+				path.add(new Step(curr.val, curr.right, true, curr.tiedSize));
+				curr = curr.left;
+			} else {
+				path.add(new Step(curr.val, curr.left, false, curr.tiedSize));
+				curr = curr.right;
+			}
+			dim = next;
+		}
+
+		Node copy = null;
+		for (int i = path.size() - 1; i >= 0; i--) {
+			Step step = path.get(i);
+			copy = step.pathLeft ? new Node(step.val, copy, step.sibling, step.tiedSize)
+					: new Node(step.val, step.sibling, copy, step.tiedSize);
+		}
+		return copy;
+	}
+
+	private KDPoint findMin(Node curr, int i, int dim) {
+		KDPoint min = null;
+		Deque<Frame> stack = new ArrayDeque<Frame>();
+		push(stack, curr, dim, -1);
+		while (!stack.isEmpty()) {
+			Frame frame = stack.pop();
+			if (min == null || frame.node.val.coords[i] < min.coords[i]) min = frame.node.val;
+			int next = (frame.dim + 1) % dims;
+			// Points of the right subtree of a node that splits on i are no smaller than it in i.
+			if (frame.dim != i) push(stack, frame.node.right, next, -1);
+			push(stack, frame.node.left, next, -1);
+		}
+		return min;
+	}
+
+	private Node rebuild(Node subtree, int dim) {
+		KDPoint[] points = new KDPoint[size(subtree)];
+		collect(subtree, points, 0);
+		return build(points, 0, points.length, dim);
+	}
+
+	private void collect(Node curr, KDPoint[] points, int i) {
+		Deque<Node> stack = new ArrayDeque<Node>();
+		if (curr != null) stack.push(curr);
+		while (!stack.isEmpty()) {
+			curr = stack.pop();
+			points[i++] = curr.val;
+			if (curr.right != null) stack.push(curr.right);
+			if (curr.left != null) stack.push(curr.left);
+		}
+	}
+}
@@ -0,0 +1,368 @@
+package projects.spatial.trees;
+
+import projects.spatial.kdpoint.KDPoint;
+import projects.spatial.knnutils.BoundedPriorityQueue;
+import projects.spatial.knnutils.NNData;
+
+import java.util.Collection;
+
+/**
+ * <p>{@link ImplicitKDTree} is an immutable KD-Tree for read-mostly workloads. Unlike the pointer-based
+ * {@link projects.spatial.nodes.KDTreeNode}, it stores no node objects at all:</p>
+ *
+ * <ul>
+ *     <li>The coordinates of all points live in a single <tt>double[]</tt>, in structure-of-arrays order: all the
+ *     values of dimension 0 first, then all the values of dimension 1, and so on.</li>
+ *     <li>The tree is implicit, like an array-based heap: the children of node i are nodes 2i + 1 and 2i + 2, and the
+ *     range of points a node covers is computed while descending, by halving the range of its parent. Internal nodes
+ *     only store their splitting dimension and value, in two flat arrays.</li>
+ *     <li>Leaves are buckets of up to B points that are contiguous in every dimension, so they are scanned with
+ *     tight loops instead of being visited point by point.</li>
+ * </ul>
+ *
+ * <p>Internal nodes split their range at its middle position, along the dimension in which the range has the largest
+ * spread, so the tree is perfectly balanced. Every point to the left of a split is smaller than or equal to the
+ * splitting value in the splitting dimension, and every point to the right of it is larger than or equal to it.</p>
+ *
+ * <p>The queries follow the conventions of {@link projects.spatial.nodes.KDTreeNode}: distances are those reported
+ * by {@link KDPoint#distance(KDPoint)}, points equal to the anchor of a query are never part of its results, and the
+ * returned {@link KDPoint}s are fresh copies.</p>
+ *
+ * <p>The leaf size B trades tree depth against scan length: small buckets prune more points, large buckets spend
+ * fewer branch mispredictions and cache misses per point. Leaf scans compute the squared distances of a whole bucket
+ * one dimension at a time, in simple counted loops over contiguous <tt>double</tt>s that the JIT compiles to SIMD
+ * instructions, so the sweet spot is usually well above 1. The default is {@value #DEFAULT_LEAF_SIZE};
+ * {@link projects.spatial.benchmarks.LeafSizeBenchmark} measures the alternatives on a given dataset.</p>
+ *
+ * @author Moweizi Xia
+ *
+ * @see projects.spatial.nodes.KDTreeNode
+ */
+public class ImplicitKDTree {
+
+	/**
+	 * The default maximum number of points per leaf bucket.
+	 */
+	public static final int DEFAULT_LEAF_SIZE = 16;
+
+	private final int size;
+	private final int dims;
+	private final int leafSize;
+	private final double[] coords;
+	private final int[] splitDims;
+	private final double[] splitVals;
+
+	/**
+	 * Builds the tree out of the provided {@link KDPoint}s, with leaf buckets of up to {@value #DEFAULT_LEAF_SIZE}
+	 * points.
+	 * @param points The {@link KDPoint}s to index.
+	 * @param dims The total number of dimensions that the space considers.
+	 * @throws RuntimeException if dims &lt; 1.
+	 */
+	public ImplicitKDTree(Collection<KDPoint> points, int dims) {
+		this(points, dims, DEFAULT_LEAF_SIZE);
+	}
+
+	/**
+	 * Builds the tree out of the provided {@link KDPoint}s in O(n log n) expected time. The points are copied.
+	 * @param points The {@link KDPoint}s to index.
+	 * @param dims The total number of dimensions that the space considers.
+	 * @param leafSize The maximum number of points per leaf bucket, B.
+	 * @throws RuntimeException if dims &lt; 1 or leafSize &lt; 1.
+	 */
+	public ImplicitKDTree(Collection<KDPoint> points, int dims, int leafSize) {
+		if (dims < 1)
+			throw new RuntimeException("ImplicitKDTree: dims cannot be less than 1.");
+		if (leafSize < 1)
+			throw new RuntimeException("ImplicitKDTree: leafSize cannot be less than 1.");
+
+		this.size = points.size();
+		this.dims = dims;
+		this.leafSize = leafSize;
+
+		int levels = 0;
+		for (int m = size; m > leafSize; m = (m + 1) / 2) levels++;
+		splitDims = new int[(1 << levels) - 1];
+		splitVals = new double[(1 << levels) - 1];
+
+		// Build on a row-major copy and a permutation, then lay the permuted points out by dimension.
+		double[] rows = new double[size * dims];
+		int[] perm = new int[size];
+		int i = 0;
+		for (KDPoint p : points) {
+			System.arraycopy(p.coords, 0, rows, i * dims, dims);
+			perm[i] = i;
+			i++;
+		}
+		build(0, 0, size, rows, perm);
+
+		coords = new double[size * dims];
+		for (i = 0; i < size; i++)
+			for (int d = 0; d < dims; d++)
+				coords[d * size + i] = rows[perm[i] * dims + d];
+	}
+
+	private void build(int node, int lo, int hi, double[] rows, int[] perm) {
+		if (hi - lo <= leafSize) return;
+
+		int dim = widestDimension(lo, hi, rows, perm);
+		int mid = lo + (hi - lo) / 2;
+		select(perm, rows, lo, hi, mid, dim);
+		splitDims[node] = dim;
+		splitVals[node] = rows[perm[mid] * dims + dim];
+
+		build(2 * node + 1, lo, mid, rows, perm);
+		build(2 * node + 2, mid, hi, rows, perm);
+	}
+
+	private int widestDimension(int lo, int hi, double[] rows, int[] perm) {
+		int widest = 0;
+		double widestSpread = -1;
+		for (int d = 0; d < dims; d++) {
+			double min = Double.POSITIVE_INFINITY, max = Double.NEGATIVE_INFINITY;
+			for (int i = lo; i < hi; i++) {
+				double c = rows[perm[i] * dims + d];
+				if (c < min) min = c;
+				if (c > max) max = c;
+			}
+			if (max - min > widestSpread) {
+				widestSpread = max - min;
+				widest = d;
+			}
+		}
+		return widest;
+	}
+
+	/* Three-way quickselect: rearranges perm[lo, hi) so that perm[k] holds the k-th smallest point in dim. */
+	private void select(int[] perm, double[] rows, int lo, int hi, int k, int dim) {
+		while (true) {
+			double a = rows[perm[lo] * dims + dim], b = rows[perm[lo + (hi - lo) / 2] * dims + dim],
+					c = rows[perm[hi - 1] * dims + dim];
+			double pivot = Math.max(Math.min(a, b), Math.min(Math.max(a, b), c));
+
+			int lt = lo, i = lo, gt = hi - 1;
+			while (i <= gt) {
+				double v = rows[perm[i] * dims + dim];
+				if (v < pivot) swap(perm, lt++, i++);
+				else if (v > pivot) swap(perm, i, gt--);
+				else i++;
+			}
+
+			if (k < lt) hi = lt;
+			else if (k > gt) lo = gt + 1;
+			else return;
+		}
+	}
+
+	private static void swap(int[] perm, int i, int j) {
+		int temp = perm[i];
+		perm[i] = perm[j];
+		perm[j] = temp;
+	}
+
+	/**
+	 * @return The number of points in the tree.
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return The number of dimensions of the points in the tree.
+	 */
+	public int dims() {
+		return dims;
+	}
+
+	/**
+	 * @return The maximum number of points per leaf bucket, B.
+	 */
+	public int leafSize() {
+		return leafSize;
+	}
+
+	/**
+	 * @return The number of internal levels above the leaf buckets; 0 if the whole tree is a single bucket.
+	 */
+	public int height() {
+		return 32 - Integer.numberOfLeadingZeros(splitDims.length);
+	}
+
+	/**
+	 * Returns a copy of the i-th point in the storage order of the tree.
+	 * @param i The index of the point, between 0 and {@link #size()} - 1.
+	 * @return A fresh {@link KDPoint} with the coordinates of the point.
+	 */
+	public KDPoint getPoint(int i) {
+		double[] c = new double[dims];
+		for (int d = 0; d < dims; d++)
+			c[d] = coords[d * size + i];
+		return new KDPoint(c);
+	}
+
+	/**
+	 * Searches the tree for the provided {@link KDPoint}.
+	 * @param pIn The {@link KDPoint} to search for.
+	 * @return true iff a point with the same coordinates as pIn is in the tree.
+	 */
+	public boolean search(KDPoint pIn) {
+		return searchHelper(0, 0, size, pIn.coords);
+	}
+
+	private boolean searchHelper(int node, int lo, int hi, double[] q) {
+		if (hi - lo <= leafSize) {
+			for (int i = lo; i < hi; i++)
+				if (same(i, q)) return true;
+			return false;
+		}
+
+		int mid = lo + (hi - lo) / 2;
+		double diff = q[splitDims[node]] - splitVals[node];
+		if (diff < 0) return searchHelper(2 * node + 1, lo, mid, q);
+		if (diff > 0) return searchHelper(2 * node + 2, mid, hi, q);
+		return searchHelper(2 * node + 1, lo, mid, q) || searchHelper(2 * node + 2, mid, hi, q);
+	}
+
+	/**
+	 * Adds copies of all the points within distance range <b>INCLUSIVE</b> of the anchor, except for the anchor
+	 * itself, to the provided {@link Collection}.
+	 * @param anchor The centroid of the hypersphere that the range query implicitly creates.
+	 * @param results A {@link Collection} that accumulates all the {@link KDPoint}s found.
+	 * @param range The <b>INCLUSIVE</b> range from the anchor.
+	 * @see projects.spatial.nodes.KDTreeNode#range(KDPoint, Collection, double, int, int)
+	 */
+	public void range(KDPoint anchor, Collection<KDPoint> results, double range) {
+		if (size == 0) return;
+		rangeHelper(0, 0, size, anchor.coords, results, range * range, new double[leafSize]);
+	}
+
+	private void rangeHelper(int node, int lo, int hi, double[] q, Collection<KDPoint> results, double range2,
+			double[] dist) {
+		if (hi - lo <= leafSize) {
+			distances(q, lo, hi, dist);
+			for (int i = lo; i < hi; i++)
+				if (dist[i - lo] <= range2 && !(dist[i - lo] == 0 && same(i, q))) results.add(getPoint(i));
+			return;
+		}
+
+		int mid = lo + (hi - lo) / 2;
+		double diff = q[splitDims[node]] - splitVals[node];
+		if (diff <= 0 || diff * diff <= range2) rangeHelper(2 * node + 1, lo, mid, q, results, range2, dist);
+		if (diff >= 0 || diff * diff <= range2) rangeHelper(2 * node + 2, mid, hi, q, results, range2, dist);
+	}
+
+	/**
+	 * Finds the nearest neighbor of the anchor, excluding the anchor itself.
+	 * @param anchor The &quot;anchor&quot; {@link KDPoint} of the nearest neighbor query.
+	 * @return An object of type {@link NNData} holding a copy of the nearest neighbor and its distance from the anchor,
+	 * or a null neighbor if there is none.
+	 * @see projects.spatial.nodes.KDTreeNode#nearestNeighbor(KDPoint, int, NNData, int)
+	 */
+	public NNData<KDPoint> nearestNeighbor(KDPoint anchor) {
+		Nearest best = new Nearest();
+		if (size > 0) nearestHelper(0, 0, size, anchor.coords, best, new double[leafSize]);
+		return new NNData<KDPoint>(best.index < 0 ? null : getPoint(best.index), best.dist);
+	}
+
+	private static class Nearest {
+		int index = -1;
+		double dist = Double.POSITIVE_INFINITY;
+	}
+
+	private void nearestHelper(int node, int lo, int hi, double[] q, Nearest best, double[] dist) {
+		if (hi - lo <= leafSize) {
+			distances(q, lo, hi, dist);
+			for (int i = lo; i < hi; i++) {
+				if (dist[i - lo] < best.dist && !(dist[i - lo] == 0 && same(i, q))) {
+					best.dist = dist[i - lo];
+					best.index = i;
+				}
+			}
+			return;
+		}
+
+		int mid = lo + (hi - lo) / 2;
+		double diff = q[splitDims[node]] - splitVals[node];
+		int near = diff < 0 ? 2 * node + 1 : 2 * node + 2, far = diff < 0 ? 2 * node + 2 : 2 * node + 1;
+		int nearLo = diff < 0 ? lo : mid, nearHi = diff < 0 ? mid : hi;
+		int farLo = diff < 0 ? mid : lo, farHi = diff < 0 ? hi : mid;
+
+		nearestHelper(near, nearLo, nearHi, q, best, dist);
+		if (diff * diff < best.dist)
+			nearestHelper(far, farLo, farHi, q, best, dist);
+	}
+
+	/**
+	 * Adds copies of the k nearest neighbors of the anchor, excluding the anchor itself, to the provided
+	 * {@link BoundedPriorityQueue}, with their distances from the anchor as priorities.
+	 * @param k The total number of neighbors to retrieve.
+	 * @param anchor The &quot;anchor&quot; {@link KDPoint} of the nearest neighbor query.
+	 * @param queue A {@link BoundedPriorityQueue} that receives the neighbors.
+	 * @see projects.spatial.nodes.KDTreeNode#kNearestNeighbors(int, KDPoint, BoundedPriorityQueue, int, int)
+	 */
+	public void kNearestNeighbors(int k, KDPoint anchor, BoundedPriorityQueue<KDPoint> queue) {
+		if (size == 0) return;
+
+		BoundedPriorityQueue<Integer> candidates = new BoundedPriorityQueue<Integer>(k);
+		kNearestHelper(0, 0, size, anchor.coords, candidates, new double[leafSize]);
+
+		while (!candidates.isEmpty()) {
+			KDPoint survivor = getPoint(candidates.dequeue());
+			queue.enqueue(survivor, anchor.distance(survivor));
+		}
+	}
+
+	private void kNearestHelper(int node, int lo, int hi, double[] q, BoundedPriorityQueue<Integer> candidates,
+			double[] dist) {
+		if (hi - lo <= leafSize) {
+			distances(q, lo, hi, dist);
+			for (int i = lo; i < hi; i++) {
+				double d = dist[i - lo];
+				if ((candidates.size() < candidates.capacity() || d < candidates.lastPriority()) && !(d == 0 && same(i, q)))
+					candidates.enqueue(i, d);
+			}
+			return;
+		}
+
+		int mid = lo + (hi - lo) / 2;
+		double diff = q[splitDims[node]] - splitVals[node];
+		int near = diff < 0 ? 2 * node + 1 : 2 * node + 2, far = diff < 0 ? 2 * node + 2 : 2 * node + 1;
+		int nearLo = diff < 0 ? lo : mid, nearHi = diff < 0 ? mid : hi;
+		int farLo = diff < 0 ? mid : lo, farHi = diff < 0 ? hi : mid;
+
+		kNearestHelper(near, nearLo, nearHi, q, candidates, dist);
+		if (candidates.size() < candidates.capacity() || diff * diff < candidates.lastPriority())
+			kNearestHelper(far, farLo, farHi, q, candidates, dist);
+	}
+
+	/*
+	 * Squared distances from q to the points in [lo, hi). The bucket is swept one dimension at a time, so that every
+	 * inner loop is a branch-free, unit-stride pass over contiguous doubles that C2 auto-vectorizes.
+	 */
+	private void distances(double[] q, int lo, int hi, double[] dist) {
+		int n = hi - lo;
+		accumulate(coords, lo, q[0], dist, n, true);
+		for (int d = 1; d < dims; d++)
+			accumulate(coords, d * size + lo, q[d], dist, n, false);
+	}
+
+	private static void accumulate(double[] coords, int base, double qd, double[] dist, int n, boolean first) {
+		if (first) {
+			for (int i = 0; i < n; i++) {
+				double diff = coords[base + i] - qd;
+				dist[i] = diff * diff;
+			}
+		} else {
+			for (int i = 0; i < n; i++) {
+				double diff = coords[base + i] - qd;
+				dist[i] += diff * diff;
+			}
+		}
+	}
+
+	private boolean same(int i, double[] q) {
+		for (int d = 0; d < dims; d++)
+			if (coords[d * size + i] != q[d]) return false;
+		return true;
+	}
+}
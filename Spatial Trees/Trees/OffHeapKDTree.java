@@ -0,0 +1,627 @@
+package projects.spatial.trees;
+
+import projects.spatial.kdpoint.KDPoint;
+import projects.spatial.knnutils.BoundedPriorityQueue;
+import projects.spatial.knnutils.NNData;
+import projects.spatial.knnutils.PointVisitor;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+
+/**
+ * <p>{@link OffHeapKDTree} is an immutable KD-Tree whose nodes and coordinates live outside of the Java heap, either
+ * in direct {@link ByteBuffer}s or in a memory-mapped file. It has the same implicit shape as {@link ImplicitKDTree}:
+ * internal nodes only store a splitting dimension and value, the children of node i are nodes 2i + 1 and 2i + 2, and
+ * leaves are buckets of up to B points whose coordinates are stored by dimension. An index of hundreds of millions of
+ * points therefore costs the garbage collector nothing to scan, and a file written by {@link #write(Path)} is queried
+ * in place by {@link #map(Path)}, without being deserialized, so opening it is instant and its pages are loaded on
+ * demand by the operating system.</p>
+ *
+ * <p>The format is little-endian and every value is aligned to its own size:</p>
+ *
+ * <ul>
+ *     <li>A header of {@value #HEADER_BYTES} bytes: the magic number <tt>KDT1</tt>, the format version, dims, B, the
+ *     number of points n and the number of internal nodes m, the last two as <tt>long</tt>s.</li>
+ *     <li>The m splitting dimensions, as <tt>int</tt>s, padded to a multiple of 8 bytes.</li>
+ *     <li>The m splitting values, as <tt>double</tt>s.</li>
+ *     <li>The n * dims coordinates, as <tt>double</tt>s: all the values of dimension 0 first, then all the values of
+ *     dimension 1, and so on.</li>
+ * </ul>
+ *
+ * <p>A single {@link ByteBuffer} cannot address more than 2GB, so the storage is split in chunks of 1GB. Since the
+ * chunk size is a multiple of 8 and every value is aligned, no value ever straddles two chunks.</p>
+ *
+ * <p>The queries follow the conventions of {@link ImplicitKDTree}. Since the tree holds no {@link KDPoint} objects,
+ * the points passed to a {@link PointVisitor} are views that are overwritten by the next point found, and the points
+ * added to collections and queues are fresh copies. Queries only read the storage, so any number of them can run
+ * concurrently. Direct memory is released when the tree becomes unreachable and is garbage collected, and a mapping
+ * when its buffers are.</p>
+ *
+ * @author Moweizi Xia
+ *
+ * @see ImplicitKDTree
+ */
+public class OffHeapKDTree {
+
+	/**
+	 * The magic number that starts every serialized tree: the bytes <tt>KDT1</tt>, read as a little-endian int.
+	 */
+	public static final int MAGIC = 0x3154444B;
+
+	/**
+	 * The version of the serialized format.
+	 */
+	public static final int VERSION = 1;
+
+	private static final int HEADER_BYTES = 32;
+	private static final int CHUNK_SHIFT = 30;
+	private static final long CHUNK_SIZE = 1L << CHUNK_SHIFT;
+	private static final long CHUNK_MASK = CHUNK_SIZE - 1;
+
+	private final Chunks storage;
+	private final int size;
+	private final int dims;
+	private final int leafSize;
+	private final int internalNodes;
+	private final long splitValsOffset;
+	private final long coordsOffset;
+
+	/**
+	 * Byte storage addressed by <tt>long</tt> offsets, over a sequence of {@link ByteBuffer}s of CHUNK_SIZE bytes (the
+	 * last one may be shorter).
+	 */
+	private static final class Chunks {
+		private final ByteBuffer[] buffers;
+		private final long length;
+
+		Chunks(ByteBuffer[] buffers, long length) {
+			this.buffers = buffers;
+			this.length = length;
+			for (ByteBuffer buffer : buffers) buffer.order(ByteOrder.LITTLE_ENDIAN);
+		}
+
+		static Chunks allocate(long length) {
+			ByteBuffer[] buffers = new ByteBuffer[chunkCount(length)];
+			for (int i = 0; i < buffers.length; i++)
+				buffers[i] = ByteBuffer.allocateDirect(chunkLength(length, i));
+			return new Chunks(buffers, length);
+		}
+
+		static Chunks map(FileChannel channel, FileChannel.MapMode mode, long length) throws IOException {
+			ByteBuffer[] buffers = new ByteBuffer[chunkCount(length)];
+			for (int i = 0; i < buffers.length; i++)
+				buffers[i] = channel.map(mode, (long) i << CHUNK_SHIFT, chunkLength(length, i));
+			return new Chunks(buffers, length);
+		}
+
+		private static int chunkCount(long length) {
+			return (int) ((length + CHUNK_MASK) >>> CHUNK_SHIFT);
+		}
+
+		private static int chunkLength(long length, int chunk) {
+			return (int) Math.min(CHUNK_SIZE, length - ((long) chunk << CHUNK_SHIFT));
+		}
+
+		int getInt(long offset) {
+			return buffers[(int) (offset >>> CHUNK_SHIFT)].getInt((int) (offset & CHUNK_MASK));
+		}
+
+		long getLong(long offset) {
+			return buffers[(int) (offset >>> CHUNK_SHIFT)].getLong((int) (offset & CHUNK_MASK));
+		}
+
+		double getDouble(long offset) {
+			return buffers[(int) (offset >>> CHUNK_SHIFT)].getDouble((int) (offset & CHUNK_MASK));
+		}
+
+		void putInt(long offset, int value) {
+			buffers[(int) (offset >>> CHUNK_SHIFT)].putInt((int) (offset & CHUNK_MASK), value);
+		}
+
+		void putLong(long offset, long value) {
+			buffers[(int) (offset >>> CHUNK_SHIFT)].putLong((int) (offset & CHUNK_MASK), value);
+		}
+
+		void putDouble(long offset, double value) {
+			buffers[(int) (offset >>> CHUNK_SHIFT)].putDouble((int) (offset & CHUNK_MASK), value);
+		}
+	}
+
+	/* Reads the layout of a tree from the header of its storage. */
+	private OffHeapKDTree(Chunks storage) {
+		if (storage.length < HEADER_BYTES || storage.getInt(0) != MAGIC)
+			throw new RuntimeException("OffHeapKDTree: not a serialized KD-Tree.");
+		if (storage.getInt(4) != VERSION)
+			throw new RuntimeException("OffHeapKDTree: unsupported format version " + storage.getInt(4) + ".");
+
+		this.storage = storage;
+		this.dims = storage.getInt(8);
+		this.leafSize = storage.getInt(12);
+		long n = storage.getLong(16), m = storage.getLong(24);
+		if (dims < 1 || leafSize < 1 || n < 0 || n > Integer.MAX_VALUE || m < 0 || m > Integer.MAX_VALUE
+				|| m != internalNodes(n, leafSize))
+			throw new RuntimeException("OffHeapKDTree: corrupt header.");
+		this.size = (int) n;
+		this.internalNodes = (int) m;
+		this.splitValsOffset = splitValsOffset(internalNodes);
+		this.coordsOffset = splitValsOffset + 8L * internalNodes;
+		if (storage.length < coordsOffset + 8L * size * dims)
+			throw new RuntimeException("OffHeapKDTree: truncated storage.");
+	}
+
+	private static long internalNodes(long size, int leafSize) {
+		int levels = 0;
+		for (long m = size; m > leafSize; m = (m + 1) / 2) levels++;
+		return (1L << levels) - 1;
+	}
+
+	private static long splitValsOffset(int internalNodes) {
+		return HEADER_BYTES + ((4L * internalNodes + 7) & ~7L);
+	}
+
+	/**
+	 * Builds a tree over the provided {@link KDPoint}s in direct memory, with leaf buckets of up to
+	 * {@value ImplicitKDTree#DEFAULT_LEAF_SIZE} points.
+	 * @param points The {@link KDPoint}s to index.
+	 * @param dims The total number of dimensions that the space considers.
+	 * @return The tree.
+	 * @throws RuntimeException if dims &lt; 1.
+	 */
+	public static OffHeapKDTree build(Collection<KDPoint> points, int dims) {
+		return build(points, dims, ImplicitKDTree.DEFAULT_LEAF_SIZE);
+	}
+
+	/**
+	 * Builds a tree over the provided {@link KDPoint}s in direct memory, in O(n log n) expected time. Besides the
+	 * points, the build keeps one <tt>int</tt> per point on the heap and a direct scratch copy of the coordinates,
+	 * 8 * n * dims bytes, so that its peak direct memory is about twice that of the coordinates of the tree. The
+	 * scratch copy is freed, like any direct buffer, once it has been garbage collected.
+	 * @param points The {@link KDPoint}s to index.
+	 * @param dims The total number of dimensions that the space considers.
+	 * @param leafSize The maximum number of points per leaf bucket, B.
+	 * @return The tree.
+	 * @throws RuntimeException if dims &lt; 1 or leafSize &lt; 1.
+	 */
+	public static OffHeapKDTree build(Collection<KDPoint> points, int dims, int leafSize) {
+		validate(dims, leafSize);
+		Chunks storage = Chunks.allocate(storageLength(points.size(), dims, leafSize));
+		layOut(points, dims, leafSize, storage);
+		return new OffHeapKDTree(storage);
+	}
+
+	/**
+	 * Builds a tree over the provided {@link KDPoint}s directly into a file, which is created or truncated, and
+	 * returns the tree mapped from that file. The tree is written through a mapping instead of being allocated in
+	 * direct memory, but the input is not streamed: like {@link #build(Collection, int, int)}, the build needs the
+	 * points on the heap, one <tt>int</tt> per point, and a direct scratch copy of their coordinates, 8 * n * dims
+	 * bytes.
+	 * @param points The {@link KDPoint}s to index.
+	 * @param dims The total number of dimensions that the space considers.
+	 * @param leafSize The maximum number of points per leaf bucket, B.
+	 * @param file The file to write the tree to.
+	 * @return The tree, mapped read-only from the file.
+	 * @throws IOException if the file cannot be written or mapped.
+	 * @throws RuntimeException if dims &lt; 1 or leafSize &lt; 1.
+	 */
+	public static OffHeapKDTree build(Collection<KDPoint> points, int dims, int leafSize, Path file) throws IOException {
+		validate(dims, leafSize);
+		long length = storageLength(points.size(), dims, leafSize);
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			layOut(points, dims, leafSize, Chunks.map(channel, FileChannel.MapMode.READ_WRITE, length));
+		}
+		return map(file);
+	}
+
+	/**
+	 * Opens a tree written by {@link #write(Path)} or {@link #build(Collection, int, int, Path)}, by mapping the file
+	 * read-only. Nothing is read besides the header until the tree is queried.
+	 * @param file The file that holds the tree.
+	 * @return The tree.
+	 * @throws IOException if the file cannot be read or mapped.
+	 * @throws RuntimeException if the file does not hold a tree in the supported format.
+	 */
+	public static OffHeapKDTree map(Path file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			// Mappings stay valid after their channel is closed.
+			return new OffHeapKDTree(Chunks.map(channel, FileChannel.MapMode.READ_ONLY, channel.size()));
+		}
+	}
+
+	/**
+	 * Writes the tree to a file, which is created or truncated, in the format that {@link #map(Path)} reads.
+	 * @param file The file to write the tree to.
+	 * @throws IOException if the file cannot be written.
+	 */
+	public void write(Path file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			for (ByteBuffer buffer : storage.buffers) {
+				ByteBuffer chunk = buffer.duplicate();
+				chunk.clear();
+				while (chunk.hasRemaining()) channel.write(chunk);
+			}
+		}
+	}
+
+	private static void validate(int dims, int leafSize) {
+		if (dims < 1)
+			throw new RuntimeException("OffHeapKDTree: dims cannot be less than 1.");
+		if (leafSize < 1)
+			throw new RuntimeException("OffHeapKDTree: leafSize cannot be less than 1.");
+	}
+
+	private static long storageLength(int size, int dims, int leafSize) {
+		long internal = internalNodes(size, leafSize);
+		if (internal > Integer.MAX_VALUE)
+			throw new RuntimeException("OffHeapKDTree: too many internal nodes for leafSize " + leafSize + ".");
+		return splitValsOffset((int) internal) + 8 * internal + 8L * size * dims;
+	}
+
+	/*
+	 * Writes the header and the tree into storage. The points are first copied row-major into a direct scratch
+	 * buffer as large as the coordinates of the tree, partitioned through a permutation, and then laid out by
+	 * dimension.
+	 */
+	private static void layOut(Collection<KDPoint> points, int dims, int leafSize, Chunks storage) {
+		int size = points.size();
+		int internal = (int) internalNodes(size, leafSize);
+		storage.putInt(0, MAGIC);
+		storage.putInt(4, VERSION);
+		storage.putInt(8, dims);
+		storage.putInt(12, leafSize);
+		storage.putLong(16, size);
+		storage.putLong(24, internal);
+
+		Chunks rows = Chunks.allocate(Math.max(8L * size * dims, 1));
+		int[] perm = new int[size];
+		int i = 0;
+		for (KDPoint p : points) {
+			for (int d = 0; d < dims; d++)
+				rows.putDouble(8 * ((long) i * dims + d), p.coords[d]);
+			perm[i] = i;
+			i++;
+		}
+
+		long splitVals = splitValsOffset(internal);
+		new Builder(storage, rows, perm, dims, leafSize, splitVals).build(0, 0, size);
+
+		long coords = splitVals + 8L * internal;
+		for (i = 0; i < size; i++)
+			for (int d = 0; d < dims; d++)
+				storage.putDouble(coords + 8 * ((long) d * size + i), rows.getDouble(8 * ((long) perm[i] * dims + d)));
+	}
+
+	/* The recursive build of ImplicitKDTree, over off-heap rows. */
+	private static final class Builder {
+		private final Chunks storage, rows;
+		private final int[] perm;
+		private final int dims, leafSize;
+		private final long splitVals;
+
+		Builder(Chunks storage, Chunks rows, int[] perm, int dims, int leafSize, long splitVals) {
+			this.storage = storage;
+			this.rows = rows;
+			this.perm = perm;
+			this.dims = dims;
+			this.leafSize = leafSize;
+			this.splitVals = splitVals;
+		}
+
+		private double row(int i, int dim) {
+			return rows.getDouble(8 * ((long) perm[i] * dims + dim));
+		}
+
+		void build(int node, int lo, int hi) {
+			if (hi - lo <= leafSize) return;
+
+			int dim = widestDimension(lo, hi);
+			int mid = lo + (hi - lo) / 2;
+			select(lo, hi, mid, dim);
+			storage.putInt(HEADER_BYTES + 4L * node, dim);
+			storage.putDouble(splitVals + 8L * node, row(mid, dim));
+
+			build(2 * node + 1, lo, mid);
+			build(2 * node + 2, mid, hi);
+		}
+
+		private int widestDimension(int lo, int hi) {
+			int widest = 0;
+			double widestSpread = -1;
+			for (int d = 0; d < dims; d++) {
+				double min = Double.POSITIVE_INFINITY, max = Double.NEGATIVE_INFINITY;
+				for (int i = lo; i < hi; i++) {
+					double c = row(i, d);
+					if (c < min) min = c;
+					if (c > max) max = c;
+				}
+				if (max - min > widestSpread) {
+					widestSpread = max - min;
+					widest = d;
+				}
+			}
+			return widest;
+		}
+
+		private void select(int lo, int hi, int k, int dim) {
+			while (true) {
+				double a = row(lo, dim), b = row(lo + (hi - lo) / 2, dim), c = row(hi - 1, dim);
+				double pivot = Math.max(Math.min(a, b), Math.min(Math.max(a, b), c));
+
+				int lt = lo, i = lo, gt = hi - 1;
+				while (i <= gt) {
+					double v = row(i, dim);
+					if (v < pivot) swap(lt++, i++);
+					else if (v > pivot) swap(i, gt--);
+					else i++;
+				}
+
+				if (k < lt) hi = lt;
+				else if (k > gt) lo = gt + 1;
+				else return;
+			}
+		}
+
+		private void swap(int i, int j) {
+			int temp = perm[i];
+			perm[i] = perm[j];
+			perm[j] = temp;
+		}
+	}
+
+	/**
+	 * @return The number of points in the tree.
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return The number of dimensions of the points in the tree.
+	 */
+	public int dims() {
+		return dims;
+	}
+
+	/**
+	 * @return The maximum number of points per leaf bucket, B.
+	 */
+	public int leafSize() {
+		return leafSize;
+	}
+
+	/**
+	 * @return The number of internal levels above the leaf buckets; 0 if the whole tree is a single bucket.
+	 */
+	public int height() {
+		return 32 - Integer.numberOfLeadingZeros(internalNodes);
+	}
+
+	/**
+	 * @return The number of bytes of off-heap storage, equal to the length of the file that {@link #write(Path)}
+	 * produces.
+	 */
+	public long storageBytes() {
+		return storage.length;
+	}
+
+	/**
+	 * Returns a copy of the i-th point in the storage order of the tree.
+	 * @param i The index of the point, between 0 and {@link #size()} - 1.
+	 * @return A fresh {@link KDPoint} with the coordinates of the point.
+	 */
+	public KDPoint getPoint(int i) {
+		return load(i, new KDPoint(new double[dims]));
+	}
+
+	private KDPoint load(int i, KDPoint into) {
+		for (int d = 0; d < dims; d++)
+			into.coords[d] = coord(d, i);
+		return into;
+	}
+
+	private double coord(int d, int i) {
+		return storage.getDouble(coordsOffset + 8 * ((long) d * size + i));
+	}
+
+	private int splitDim(int node) {
+		return storage.getInt(HEADER_BYTES + 4L * node);
+	}
+
+	private double splitVal(int node) {
+		return storage.getDouble(splitValsOffset + 8L * node);
+	}
+
+	/**
+	 * Searches the tree for the provided {@link KDPoint}.
+	 * @param pIn The {@link KDPoint} to search for.
+	 * @return true iff a point with the same coordinates as pIn is in the tree.
+	 */
+	public boolean search(KDPoint pIn) {
+		return searchHelper(0, 0, size, pIn.coords);
+	}
+
+	private boolean searchHelper(int node, int lo, int hi, double[] q) {
+		if (hi - lo <= leafSize) {
+			for (int i = lo; i < hi; i++)
+				if (same(i, q)) return true;
+			return false;
+		}
+
+		int mid = lo + (hi - lo) / 2;
+		double diff = q[splitDim(node)] - splitVal(node);
+		if (diff < 0) return searchHelper(2 * node + 1, lo, mid, q);
+		if (diff > 0) return searchHelper(2 * node + 2, mid, hi, q);
+		return searchHelper(2 * node + 1, lo, mid, q) || searchHelper(2 * node + 2, mid, hi, q);
+	}
+
+	/**
+	 * Adds copies of all the points within distance range <b>INCLUSIVE</b> of the anchor, except for the anchor
+	 * itself, to the provided {@link Collection}.
+	 * @param anchor The centroid of the hypersphere that the range query implicitly creates.
+	 * @param results A {@link Collection} that accumulates all the {@link KDPoint}s found.
+	 * @param range The <b>INCLUSIVE</b> range from the anchor.
+	 * @see ImplicitKDTree#range(KDPoint, Collection, double)
+	 */
+	public void range(KDPoint anchor, Collection<KDPoint> results, double range) {
+		range(anchor, range, p -> results.add(new KDPoint(p)));
+	}
+
+	/**
+	 * Streams all the points within distance range <b>INCLUSIVE</b> of the anchor, except for the anchor itself, to a
+	 * {@link PointVisitor}. The visitor receives a single {@link KDPoint} that is overwritten with every point found.
+	 * @param anchor The centroid of the hypersphere that the range query implicitly creates.
+	 * @param range The <b>INCLUSIVE</b> range from the anchor.
+	 * @param visitor The {@link PointVisitor} that receives every point found. The query stops as soon as it returns
+	 *                false.
+	 * @return false if the visitor terminated the query early, true otherwise.
+	 */
+	public boolean range(KDPoint anchor, double range, PointVisitor visitor) {
+		if (size == 0 || range < 0) return true;
+		return rangeHelper(0, 0, size, anchor.coords, range * range, new double[leafSize],
+				new KDPoint(new double[dims]), visitor);
+	}
+
+	/**
+	 * Counts the points that {@link #range(KDPoint, Collection, double)} would report, without collecting them.
+	 * @param anchor The centroid of the hypersphere that the range query implicitly creates.
+	 * @param range The <b>INCLUSIVE</b> range from the anchor.
+	 * @return The number of points, other than the anchor, within range of the anchor.
+	 */
+	public int countRange(KDPoint anchor, double range) {
+		int[] count = new int[1];
+		range(anchor, range, p -> { count[0]++; return true; });
+		return count[0];
+	}
+
+	private boolean rangeHelper(int node, int lo, int hi, double[] q, double range2, double[] dist, KDPoint view,
+			PointVisitor visitor) {
+		if (hi - lo <= leafSize) {
+			distances(q, lo, hi, dist);
+			for (int i = lo; i < hi; i++)
+				if (dist[i - lo] <= range2 && !(dist[i - lo] == 0 && same(i, q)) && !visitor.visit(load(i, view)))
+					return false;
+			return true;
+		}
+
+		int mid = lo + (hi - lo) / 2;
+		double diff = q[splitDim(node)] - splitVal(node);
+		if ((diff <= 0 || diff * diff <= range2) && !rangeHelper(2 * node + 1, lo, mid, q, range2, dist, view, visitor))
+			return false;
+		if ((diff >= 0 || diff * diff <= range2) && !rangeHelper(2 * node + 2, mid, hi, q, range2, dist, view, visitor))
+			return false;
+		return true;
+	}
+
+	/**
+	 * Finds the nearest neighbor of the anchor, excluding the anchor itself.
+	 * @param anchor The &quot;anchor&quot; {@link KDPoint} of the nearest neighbor query.
+	 * @return An object of type {@link NNData} holding a copy of the nearest neighbor and its distance from the anchor,
+	 * or a null neighbor if there is none.
+	 * @see ImplicitKDTree#nearestNeighbor(KDPoint)
+	 */
+	public NNData<KDPoint> nearestNeighbor(KDPoint anchor) {
+		Nearest best = new Nearest();
+		if (size > 0) nearestHelper(0, 0, size, anchor.coords, best, new double[leafSize]);
+		return new NNData<KDPoint>(best.index < 0 ? null : getPoint(best.index), best.dist);
+	}
+
+	private static class Nearest {
+		int index = -1;
+		double dist = Double.POSITIVE_INFINITY;
+	}
+
+	private void nearestHelper(int node, int lo, int hi, double[] q, Nearest best, double[] dist) {
+		if (hi - lo <= leafSize) {
+			distances(q, lo, hi, dist);
+			for (int i = lo; i < hi; i++) {
+				if (dist[i - lo] < best.dist && !(dist[i - lo] == 0 && same(i, q))) {
+					best.dist = dist[i - lo];
+					best.index = i;
+				}
+			}
+			return;
+		}
+
+		int mid = lo + (hi - lo) / 2;
+		double diff = q[splitDim(node)] - splitVal(node);
+		int near = diff < 0 ? 2 * node + 1 : 2 * node + 2, far = diff < 0 ? 2 * node + 2 : 2 * node + 1;
+		int nearLo = diff < 0 ? lo : mid, nearHi = diff < 0 ? mid : hi;
+		int farLo = diff < 0 ? mid : lo, farHi = diff < 0 ? hi : mid;
+
+		nearestHelper(near, nearLo, nearHi, q, best, dist);
+		if (diff * diff < best.dist)
+			nearestHelper(far, farLo, farHi, q, best, dist);
+	}
+
+	/**
+	 * Adds copies of the k nearest neighbors of the anchor, excluding the anchor itself, to the provided
+	 * {@link BoundedPriorityQueue}, with their distances from the anchor as priorities.
+	 * @param k The total number of neighbors to retrieve.
+	 * @param anchor The &quot;anchor&quot; {@link KDPoint} of the nearest neighbor query.
+	 * @param queue A {@link BoundedPriorityQueue} that receives the neighbors.
+	 * @see ImplicitKDTree#kNearestNeighbors(int, KDPoint, BoundedPriorityQueue)
+	 */
+	public void kNearestNeighbors(int k, KDPoint anchor, BoundedPriorityQueue<KDPoint> queue) {
+		if (size == 0) return;
+
+		BoundedPriorityQueue<Integer> candidates = new BoundedPriorityQueue<Integer>(k);
+		kNearestHelper(0, 0, size, anchor.coords, candidates, new double[leafSize]);
+
+		while (!candidates.isEmpty()) {
+			KDPoint survivor = getPoint(candidates.dequeue());
+			queue.enqueue(survivor, anchor.distance(survivor));
+		}
+	}
+
+	private void kNearestHelper(int node, int lo, int hi, double[] q, BoundedPriorityQueue<Integer> candidates,
+			double[] dist) {
+		if (hi - lo <= leafSize) {
+			distances(q, lo, hi, dist);
+			for (int i = lo; i < hi; i++) {
+				double d = dist[i - lo];
+				if ((candidates.size() < candidates.capacity() || d < candidates.lastPriority()) && !(d == 0 && same(i, q)))
+					candidates.enqueue(i, d);
+			}
+			return;
+		}
+
+		int mid = lo + (hi - lo) / 2;
+		double diff = q[splitDim(node)] - splitVal(node);
+		int near = diff < 0 ? 2 * node + 1 : 2 * node + 2, far = diff < 0 ? 2 * node + 2 : 2 * node + 1;
+		int nearLo = diff < 0 ? lo : mid, nearHi = diff < 0 ? mid : hi;
+		int farLo = diff < 0 ? mid : lo, farHi = diff < 0 ? hi : mid;
+
+		kNearestHelper(near, nearLo, nearHi, q, candidates, dist);
+		if (candidates.size() < candidates.capacity() || diff * diff < candidates.lastPriority())
+			kNearestHelper(far, farLo, farHi, q, candidates, dist);
+	}
+
+	/* Squared distances from q to the points in [lo, hi), swept one dimension at a time as in ImplicitKDTree. */
+	private void distances(double[] q, int lo, int hi, double[] dist) {
+		int n = hi - lo;
+		long base = coordsOffset + 8L * lo;
+		for (int i = 0; i < n; i++) {
+			double diff = storage.getDouble(base + 8L * i) - q[0];
+			dist[i] = diff * diff;
+		}
+		for (int d = 1; d < dims; d++) {
+			base = coordsOffset + 8 * ((long) d * size + lo);
+			for (int i = 0; i < n; i++) {
+				double diff = storage.getDouble(base + 8L * i) - q[d];
+				dist[i] += diff * diff;
+			}
+		}
+	}
+
+	private boolean same(int i, double[] q) {
+		for (int d = 0; d < dims; d++)
+			if (coord(d, i) != q[d]) return false;
+		return true;
+	}
+}
@@ -1,10 +1,8 @@
 package projects.spatial.knnutils;
 
 import projects.spatial.kdpoint.KDPoint;
-import java.util.ArrayList;
-import java.util.Comparator;
 import java.util.Iterator;
-import java.util.PriorityQueue;
+import java.util.NoSuchElementException;
 
 /**
  * <p>{@link BoundedPriorityQueue} is an {@link Iterable} priority queue whose number of elements
@@ -12,14 +10,24 @@ import java.util.PriorityQueue;
  * its length is not expanded, but rather the maximum priority element is ejected
  * (which could be the element just attempted to be enqueued).</p>
  *
+ * <p>The queue is a fixed-size binary <b>max</b>-heap over a primitive <tt>double[]</tt> of priorities and a parallel
+ * array of elements, so the worst element, which is the one kNN queries prune against, is always at the root:
+ * {@link #last()}, {@link #lastPriority()} and {@link #removeLast()} take O(1), O(1) and O(log k) time, and
+ * {@link #enqueue(Object, double)} takes O(log k) time without allocating anything. The minimum priority element is
+ * only needed once a query is over, so the first call to {@link #first()} or {@link #dequeue()} after an insertion
+ * sorts the heap in place, in descending order (which is still a valid max-heap); the minimum is then the last
+ * element of the array and can be dequeued in O(1).</p>
+ *
  * @author  Moweizi Xia 
  *
  */
 public class BoundedPriorityQueue<T> implements Iterable<T>{
 
-	private int max_size;
+	private final int max_size;
 	private int curr_size;
-	private PriorityQueue<Element> queue;
+	private final double[] priorities;
+	private final Object[] vals;
+	private boolean sorted;
 
 	public class Element {
 		private T val;
@@ -35,17 +43,6 @@ public class BoundedPriorityQueue<T> implements Iterable<T>{
 		}
 	}
 
-	public class BPQComparator implements Comparator<Element> {
-
-		@Override
-		public int compare(Element a, Element b) {
-			if (a.priority < b.priority) return -1;
-			else if (a.priority > b.priority) return 1;
-			else return 0;
-		}
-		
-	}
-
 	/**
 	 * Standard constructor. Creates a {@link BoundedPriorityQueue} of the provided size.
 	 * @param size The number of elements that the {@link BoundedPriorityQueue} instance is allowed to store.
@@ -56,8 +53,9 @@ public class BoundedPriorityQueue<T> implements Iterable<T>{
 			throw new RuntimeException("Size cannot be less than 1.");
 		max_size = size;
 		curr_size = 0;
-		queue = new PriorityQueue<Element>(new BPQComparator());
-		
+		priorities = new double[size];
+		vals = new Object[size];
+		sorted = true;
 	}
 
 	/**
@@ -72,17 +70,13 @@ public class BoundedPriorityQueue<T> implements Iterable<T>{
 	 * @see projects.spatial.kdpoint.KDPoint#distance(KDPoint)
 	 */
 	public void enqueue(T element, double priority) {
-		Element new_element = new Element(element, priority);
-		
 		if (curr_size < max_size) {
-			queue.add(new_element);
-			curr_size++;
+			siftUp(curr_size++, element, priority);
+			sorted = false;
 		}
-		else {
-			if (this.lastElement().priority > priority) {
-				this.removeLast();
-				queue.add(new_element);
-			}
+		else if (priority < priorities[0]) {
+			siftDown(0, element, priority, curr_size);
+			sorted = false;
 		}
 	}
 
@@ -91,8 +85,11 @@ public class BoundedPriorityQueue<T> implements Iterable<T>{
 	 * @return The minimum priority element in the queue, or null if the queue is empty.
 	 */
 	public T dequeue() {
-		curr_size--;
-		return queue.poll().val;
+		if (this.isEmpty()) return null;
+		sort();
+		T removed = elementAt(--curr_size);
+		vals[curr_size] = null;
+		return removed;
 	}
 
 	/**
@@ -101,52 +98,49 @@ public class BoundedPriorityQueue<T> implements Iterable<T>{
 	 */
 	public T first() {
 		if (this.isEmpty()) return null;
-		return queue.peek().val;
+		sort();
+		return elementAt(curr_size - 1);
 	}
 
-
 	/**
-	 * <p>Return, <b>but don't remove</b>, the <b>maximum priority element</b> from the queue. This operation is inefficient
-	 * in MinHeap - based Priority Queues. That's fine for the purposes of our project; you should feel free to
-	 * implement your priority queue in any way provides correctness and elementary efficiency of operations.</p>
+	 * Return, <b>but don't remove</b>, the <b>maximum priority element</b> from the queue.
 	 * @return The maximum priority element of the queue, or null if the queue is empty.
 	 */
 	public T last() {
 		if (this.isEmpty()) return null;
-		
-		PriorityQueue<Element> temp = new PriorityQueue<Element>(new BPQComparator());
-		Element target;
-		
-		while(queue.size() > 1) temp.add(queue.poll());
-		target = queue.poll();
-		temp.add(target);
-		queue = temp;
-		return target.val;
+		return elementAt(0);
+	}
+
+	/**
+	 * Return the priority of the <b>maximum priority element</b> of the queue. Unlike {@link #lastElement()}, this
+	 * does not allocate, which makes it the preferred bound for pruning in kNN queries.
+	 * @return The maximum priority in the queue, or {@link Double#POSITIVE_INFINITY} if the queue is empty.
+	 */
+	public double lastPriority() {
+		if (this.isEmpty()) return Double.POSITIVE_INFINITY;
+		return priorities[0];
 	}
 	
 	/**
 	 * Removes the last element.
 	 */
 	public void removeLast() {
-		PriorityQueue<Element> temp = new PriorityQueue<Element>(new BPQComparator());
-		
-		while(queue.size() > 1) temp.add(queue.poll());
-		queue.clear();
-		queue = temp;
+		if (this.isEmpty()) return;
+		int last = --curr_size;
+		if (last > 0) {
+			siftDown(0, elementAt(last), priorities[last], last);
+			sorted = false;
+		}
+		vals[last] = null;
 	}
 	
 	/**
 	 * Like last put returns the element instead.
+	 * @return The maximum priority element of the queue together with its priority, or null if the queue is empty.
 	 */
 	public Element lastElement() {
-		PriorityQueue<Element> temp = new PriorityQueue<Element>(new BPQComparator());
-		Element target;
-		
-		while(queue.size() > 1) temp.add(queue.poll());
-		target = queue.poll();
-		temp.add(target);
-		queue = temp;
-		return target;
+		if (this.isEmpty()) return null;
+		return new Element(elementAt(0), priorities[0]);
 	}
 
 	/**
@@ -157,6 +151,13 @@ public class BoundedPriorityQueue<T> implements Iterable<T>{
 		return curr_size;
 	}
 
+	/**
+	 * @return The number of elements that the queue is allowed to store.
+	 */
+	public int capacity() {
+		return max_size;
+	}
+
 	/**
 	 * Query the queue about emptiness. A queue is empty <b>iff</b> it contains <b>0 (zero)</b> elements.
 	 * @return true iff the queue contains <b>0 (zero)</b> elements.
@@ -165,31 +166,95 @@ public class BoundedPriorityQueue<T> implements Iterable<T>{
 		return curr_size == 0;
 	}
 
+	/**
+	 * Removes every element from the queue, so that it can be reused for another query.
+	 */
+	public void clear() {
+		for (int i = 0; i < curr_size; i++) vals[i] = null;
+		curr_size = 0;
+		sorted = true;
+	}
+
+	@SuppressWarnings("unchecked")
+	private T elementAt(int index) {
+		return (T) vals[index];
+	}
+
+	/* Moves the element up from index until its parent has a priority at least as large. */
+	private void siftUp(int index, T element, double priority) {
+		while (index > 0) {
+			int parent = (index - 1) / 2;
+			if (priorities[parent] >= priority) break;
+			priorities[index] = priorities[parent];
+			vals[index] = vals[parent];
+			index = parent;
+		}
+		priorities[index] = priority;
+		vals[index] = element;
+	}
+
+	/* Places the element at index and moves it down until both of its children within size have smaller priorities. */
+	private void siftDown(int index, T element, double priority, int size) {
+		int half = size / 2;
+		while (index < half) {
+			int child = 2 * index + 1;
+			if (child + 1 < size && priorities[child + 1] > priorities[child]) child++;
+			if (priority >= priorities[child]) break;
+			priorities[index] = priorities[child];
+			vals[index] = vals[child];
+			index = child;
+		}
+		priorities[index] = priority;
+		vals[index] = element;
+	}
+
+	/* Heapsorts the array in place into descending order of priority, which is itself a valid max-heap. */
+	private void sort() {
+		if (sorted) return;
+		for (int end = curr_size - 1; end > 0; end--) {
+			double priority = priorities[end];
+			T element = elementAt(end);
+			priorities[end] = priorities[0];
+			vals[end] = vals[0];
+			siftDown(0, element, priority, end);
+		}
+		for (int i = 0, j = curr_size - 1; i < j; i++, j--) {
+			double priority = priorities[i];
+			priorities[i] = priorities[j];
+			priorities[j] = priority;
+			Object val = vals[i];
+			vals[i] = vals[j];
+			vals[j] = val;
+		}
+		sorted = true;
+	}
+
+	/**
+	 * Returns an iterator over the elements of the queue, in ascending order of priority.
+	 */
 	@Override
 	public Iterator<T> iterator() {
+		sort();
 		return new BPQIterator();
 	}
 	
 	class BPQIterator implements Iterator<T> {
 
 		int current;
-		Iterator<Element> itr;
-		PriorityQueue<Element> copy;
 		
 		public BPQIterator(){
-			current = 0;
-			copy = new PriorityQueue<>(queue);
-			itr = copy.iterator();
+			current = curr_size - 1;
 		}
 		
 		@Override
 		public boolean hasNext() {
-			return itr.hasNext(); 
+			return current >= 0 && current < curr_size;
 		}
 
 		@Override
 		public T next() {
-			return itr.next().val;
+			if (!hasNext()) throw new NoSuchElementException("next(): No more elements in the queue.");
+			return elementAt(current--);
 		} 
 	}
 }
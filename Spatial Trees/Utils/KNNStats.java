@@ -0,0 +1,131 @@
+package projects.spatial.knnutils;
+
+/**
+ * <p>{@link KNNStats} counts the work done by nearest neighbor queries, so that search strategies can be compared on
+ * real data: the number of tree nodes visited and the number of point distances computed. A single instance can be
+ * passed to several queries to accumulate their totals; it is not thread-safe.</p>
+ *
+ * <p>For approximate queries, it also counts the queries that ran out of their visit budget and, if
+ * {@link #setMeasureRecall(boolean) enabled}, the recall they achieved: the fraction of the exact k nearest neighbors
+ * that the approximate answer matched. Measuring recall runs an exact query next to every approximate one, so it
+ * is meant for tuning, not for production traffic.</p>
+ *
+ * @author  Moweizi Xia
+ *
+ */
+public class KNNStats {
+
+	private long queries;
+	private long nodesVisited;
+	private long distancesComputed;
+	private long budgetExhausted;
+	private boolean measureRecall;
+	private long recallQueries;
+	private double recallSum;
+	private double minRecall = 1;
+
+	/**
+	 * Records the start of a query.
+	 */
+	public void query() {
+		queries++;
+	}
+
+	/**
+	 * Records the visit of a tree node.
+	 */
+	public void visitNode() {
+		nodesVisited++;
+	}
+
+	/**
+	 * Records the computation of distances between the anchor of a query and stored points.
+	 * @param count The number of distances computed.
+	 */
+	public void computeDistances(int count) {
+		distancesComputed += count;
+	}
+
+	/**
+	 * Records an approximate query that stopped because it reached its visit budget.
+	 */
+	public void exhaustBudget() {
+		budgetExhausted++;
+	}
+
+	/**
+	 * Records the recall of an approximate query.
+	 * @param recall The fraction, between 0 and 1, of the exact nearest neighbors that the query matched.
+	 */
+	public void recordRecall(double recall) {
+		recallQueries++;
+		recallSum += recall;
+		minRecall = Math.min(minRecall, recall);
+	}
+
+	/**
+	 * Enables or disables the measurement of recall by the approximate queries this is passed to.
+	 * @param measureRecall Whether approximate queries should also run an exact query to measure their recall.
+	 */
+	public void setMeasureRecall(boolean measureRecall) {
+		this.measureRecall = measureRecall;
+	}
+
+	public boolean isMeasuringRecall() {
+		return measureRecall;
+	}
+
+	public long getQueries() {
+		return queries;
+	}
+
+	public long getNodesVisited() {
+		return nodesVisited;
+	}
+
+	public long getDistancesComputed() {
+		return distancesComputed;
+	}
+
+	/**
+	 * @return The mean number of nodes visited per query, or 0 if no query was recorded.
+	 */
+	public double getNodesVisitedPerQuery() {
+		return queries == 0 ? 0 : (double) nodesVisited / queries;
+	}
+
+	public long getBudgetExhausted() {
+		return budgetExhausted;
+	}
+
+	/**
+	 * @return The mean recall of the approximate queries whose recall was measured, or 1 if there were none.
+	 */
+	public double getMeanRecall() {
+		return recallQueries == 0 ? 1 : recallSum / recallQueries;
+	}
+
+	/**
+	 * @return The lowest recall of the approximate queries whose recall was measured, or 1 if there were none.
+	 */
+	public double getMinRecall() {
+		return minRecall;
+	}
+
+	/**
+	 * Zeroes every counter. Whether recall is measured is left unchanged.
+	 */
+	public void reset() {
+		queries = nodesVisited = distancesComputed = budgetExhausted = recallQueries = 0;
+		recallSum = 0;
+		minRecall = 1;
+	}
+
+	@Override
+	public String toString() {
+		String counters = "queries=" + queries + ", nodesVisited=" + nodesVisited + ", distancesComputed=" + distancesComputed;
+		if (budgetExhausted > 0) counters += ", budgetExhausted=" + budgetExhausted;
+		if (recallQueries > 0) counters += ", meanRecall=" + getMeanRecall() + ", minRecall=" + minRecall;
+		return counters;
+	}
+}
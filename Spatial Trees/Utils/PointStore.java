@@ -0,0 +1,179 @@
+package projects.spatial.knnutils;
+
+import projects.spatial.kdpoint.KDPoint;
+
+import java.util.Arrays;
+
+/**
+ * <p>{@link PointStore} holds points as the rows of a single, growable coordinate matrix, so that spatial indices can
+ * refer to a point by its <tt>int</tt> row index instead of by a {@link KDPoint}. A stored point costs exactly
+ * dims coordinates, with no object header and no reference to it, and rows are laid out contiguously, in insertion
+ * order.</p>
+ *
+ * <p>Coordinates are stored either as <tt>double</tt>s or, in single precision, as <tt>float</tt>s, which halves the
+ * memory of the matrix. In single precision, every coordinate is rounded to the nearest <tt>float</tt> when it is
+ * added, and {@link #quantize(double[])} and {@link #same(int, double[])} round the query coordinates the same way,
+ * so that a point can still be found by the coordinates it was added with. Distances are always computed in
+ * <tt>double</tt>s, over the stored values.</p>
+ *
+ * <p>The store is append-only: row indices stay valid for its whole life, and indices that drop a point do not
+ * reclaim its row.</p>
+ *
+ * @author  Moweizi Xia
+ *
+ * @see projects.spatial.nodes.IndexedKDTreeNode
+ */
+public class PointStore {
+
+	private static final int DEFAULT_CAPACITY = 16;
+
+	private final int dims;
+	private final boolean singlePrecision;
+	private double[] doubles;
+	private float[] floats;
+	private int size;
+
+	/**
+	 * Creates an empty store of <tt>double</tt> coordinates.
+	 * @param dims The number of dimensions of the points.
+	 * @throws RuntimeException if dims &lt; 1.
+	 */
+	public PointStore(int dims) {
+		this(dims, false, DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Creates an empty store.
+	 * @param dims The number of dimensions of the points.
+	 * @param singlePrecision Whether coordinates are stored as <tt>float</tt>s instead of <tt>double</tt>s.
+	 * @param capacity The number of points to reserve room for.
+	 * @throws RuntimeException if dims &lt; 1 or capacity &lt; 0.
+	 */
+	public PointStore(int dims, boolean singlePrecision, int capacity) {
+		if (dims < 1)
+			throw new RuntimeException("PointStore: dims cannot be less than 1.");
+		if (capacity < 0)
+			throw new RuntimeException("PointStore: capacity cannot be negative.");
+		this.dims = dims;
+		this.singlePrecision = singlePrecision;
+		if (singlePrecision) floats = new float[capacity * dims];
+		else doubles = new double[capacity * dims];
+	}
+
+	/**
+	 * Appends a point to the store.
+	 * @param coords The coordinates of the point; only the first dims are read.
+	 * @return The row index of the point.
+	 */
+	public int add(double... coords) {
+		int base = size * dims;
+		if (singlePrecision) {
+			if (base == floats.length) floats = Arrays.copyOf(floats, Math.max(2 * base, DEFAULT_CAPACITY * dims));
+			for (int d = 0; d < dims; d++) floats[base + d] = (float) coords[d];
+		} else {
+			if (base == doubles.length) doubles = Arrays.copyOf(doubles, Math.max(2 * base, DEFAULT_CAPACITY * dims));
+			System.arraycopy(coords, 0, doubles, base, dims);
+		}
+		return size++;
+	}
+
+	/**
+	 * Appends a point to the store.
+	 * @param p The {@link KDPoint} whose coordinates to store. It is not retained.
+	 * @return The row index of the point.
+	 */
+	public int add(KDPoint p) {
+		return add(p.coords);
+	}
+
+	/**
+	 * @param i The row index of a point.
+	 * @param d A dimension, between 0 and dims - 1.
+	 * @return The stored coordinate of the point in dimension d.
+	 */
+	public double get(int i, int d) {
+		return singlePrecision ? floats[i * dims + d] : doubles[i * dims + d];
+	}
+
+	/**
+	 * @param i The row index of a point.
+	 * @return A fresh {@link KDPoint} with the stored coordinates of the point.
+	 */
+	public KDPoint getPoint(int i) {
+		double[] c = new double[dims];
+		for (int d = 0; d < dims; d++) c[d] = get(i, d);
+		return new KDPoint(c);
+	}
+
+	/**
+	 * Computes the squared Euclidean distance, which is what {@link KDPoint#distance(KDPoint)} reports, between a
+	 * stored point and the provided coordinates.
+	 * @param i The row index of a point.
+	 * @param q The coordinates to measure the distance from.
+	 * @return The squared distance.
+	 */
+	public double distance(int i, double[] q) {
+		int base = i * dims;
+		double dist = 0;
+		if (singlePrecision) {
+			for (int d = 0; d < dims; d++) {
+				double diff = floats[base + d] - q[d];
+				dist += diff * diff;
+			}
+		} else {
+			for (int d = 0; d < dims; d++) {
+				double diff = doubles[base + d] - q[d];
+				dist += diff * diff;
+			}
+		}
+		return dist;
+	}
+
+	/**
+	 * @param i The row index of a point.
+	 * @param q Coordinates, rounded like stored ones before the comparison.
+	 * @return true iff the stored point has the provided coordinates.
+	 */
+	public boolean same(int i, double[] q) {
+		int base = i * dims;
+		for (int d = 0; d < dims; d++)
+			if (singlePrecision ? floats[base + d] != (float) q[d] : doubles[base + d] != q[d]) return false;
+		return true;
+	}
+
+	/**
+	 * Rounds coordinates to the precision of the store, so that they compare with stored coordinates exactly as
+	 * they would if they had been stored.
+	 * @param q The coordinates to round.
+	 * @return q itself in double precision, a rounded copy of it in single precision.
+	 */
+	public double[] quantize(double[] q) {
+		if (!singlePrecision) return q;
+		double[] rounded = new double[dims];
+		for (int d = 0; d < dims; d++) rounded[d] = (float) q[d];
+		return rounded;
+	}
+
+	/**
+	 * @return The number of points in the store.
+	 */
+	public int size() {
+		return size;
+	}
+
+	public int dims() {
+		return dims;
+	}
+
+	public boolean isSinglePrecision() {
+		return singlePrecision;
+	}
+
+	/**
+	 * Releases the capacity reserved beyond the points stored so far.
+	 */
+	public void trimToSize() {
+		if (singlePrecision) floats = Arrays.copyOf(floats, size * dims);
+		else doubles = Arrays.copyOf(doubles, size * dims);
+	}
+}
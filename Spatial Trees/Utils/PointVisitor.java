@@ -0,0 +1,24 @@
+package projects.spatial.knnutils;
+
+import projects.spatial.kdpoint.KDPoint;
+
+/**
+ * <p>{@link PointVisitor} receives the results of a streaming spatial query one at a time, as they are found, instead
+ * of having them copied into a {@link java.util.Collection}. The {@link KDPoint}s it is handed are the ones stored in
+ * the tree, <b>not copies</b>: a visitor must neither modify them nor keep references to them after the query, and
+ * should copy any point it needs to retain.</p>
+ *
+ * @author  Moweizi Xia
+ *
+ * @see projects.spatial.nodes.KDTreeNode#range(KDPoint, double, int, int, PointVisitor)
+ */
+@FunctionalInterface
+public interface PointVisitor {
+
+	/**
+	 * Handles a point that satisfies the query.
+	 * @param point The point found, owned by the tree.
+	 * @return true to continue the query, false to terminate it early.
+	 */
+	boolean visit(KDPoint point);
+}